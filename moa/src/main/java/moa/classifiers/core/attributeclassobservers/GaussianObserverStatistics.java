@@ -0,0 +1,39 @@
+/*
+ *    GaussianObserverStatistics.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.core.attributeclassobservers;
+
+import moa.core.GaussianEstimator;
+
+/**
+ * Read-only access to the per-class estimators of a
+ * GaussianNumericAttributeClassObserver, for code outside this package that
+ * compiles observers into a prediction-only form.
+ */
+public final class GaussianObserverStatistics {
+
+	private GaussianObserverStatistics() {
+	}
+
+	/*
+	 * The estimator for classVal, or null if the class was never observed. It must not be modified.
+	 */
+	public static GaussianEstimator getEstimator(GaussianNumericAttributeClassObserver observer, int classVal) {
+		return observer.attValDistPerClass.get(classVal);
+	}
+}
@@ -0,0 +1,67 @@
+package moa.classifiers.core.diversitytest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.tasks.TaskMonitor;
+
+/**
+ * Diversity test that averages a pairwise measure over all pairs of the pool,
+ * sharing one PairwiseContingencyEngine so each classifier predicts the chunk once.
+ */
+public abstract class AbstractPairwiseDiversityTest extends AbstractOptionHandler implements DiversityTest {
+
+	private static final long serialVersionUID = 1L;
+	
+	private List<Instance> testChunk;
+	private List<Classifier> classifierPool;
+	
+	private boolean isSet;
+	
+	public AbstractPairwiseDiversityTest() {
+		this.testChunk = null;
+		this.classifierPool = null;
+		this.isSet = false;
+	}
+
+	@Override
+	public void getDescription(StringBuilder sb, int indent) {
+		
+	}
+
+	@Override
+	public Double call() throws Exception {
+		if (!isSet || this.classifierPool.size() < 2) {
+			return 0.0;
+		}
+		
+		PairwiseContingencyEngine engine = new PairwiseContingencyEngine(this.testChunk);
+		double scoreSum = 0.0;
+		int pairs = 0;
+		for (int i = 0; i < this.classifierPool.size() - 1; ++i) {
+			for (int j = i + 1; j < this.classifierPool.size(); ++j) {
+				scoreSum += this.getPairwiseScore(engine.getContingency(this.classifierPool.get(i), this.classifierPool.get(j)));
+				++pairs;
+			}
+		}
+		return scoreSum / pairs;
+	}
+
+	@Override
+	protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+		
+	}
+
+	@Override
+	public void set(List<Instance> testChunk, List<Classifier> targetPool) {
+		this.testChunk = new ArrayList<Instance>(testChunk);
+		this.classifierPool = new ArrayList<Classifier>(targetPool);
+		this.isSet = true;
+	}
+
+}
@@ -0,0 +1,26 @@
+package moa.classifiers.core.diversitytest;
+
+/**
+ * Disagreement measure: fraction of instances on which exactly one of the two classifiers is correct.
+ */
+public class DisagreementMeasure extends AbstractPairwiseDiversityTest {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public double getPairwiseScore(PairwiseContingencyEngine.Contingency contingency) {
+		return contingency.getDisagreement();
+	}
+
+	@Override
+	public boolean morePositiveMoreDiverse() {
+		return true;
+	}
+
+	@Override
+	public double getSimilarityThreshold(double similarityThreshold) {
+		// The similarity, minus the disagreement, is in [-1, 0].
+		return -1.0 + (1.0 - similarityThreshold) / 2.0;
+	}
+
+}
@@ -10,4 +10,12 @@ import moa.options.OptionHandler;
 public interface DiversityTest extends OptionHandler, Callable<Double> {
 	public void set(List<Instance> testChunk, List<Classifier> targetPool);
 	public boolean morePositiveMoreDiverse();
+	public double getPairwiseScore(PairwiseContingencyEngine.Contingency contingency);
+	
+	/*
+	 * Maps a similarity threshold s in [0, 1] onto this measure's own range. The result is
+	 * compared with the pairwise score, negated if morePositiveMoreDiverse, and sits at the
+	 * same fraction (1 - s) / 2 of that range as -s does on the [-1, 1] range of Q.
+	 */
+	public double getSimilarityThreshold(double similarityThreshold);
 }
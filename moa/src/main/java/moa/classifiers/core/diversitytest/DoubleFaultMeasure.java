@@ -0,0 +1,26 @@
+package moa.classifiers.core.diversitytest;
+
+/**
+ * Double-fault measure: fraction of instances both classifiers misclassify.
+ */
+public class DoubleFaultMeasure extends AbstractPairwiseDiversityTest {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public double getPairwiseScore(PairwiseContingencyEngine.Contingency contingency) {
+		return contingency.getDoubleFault();
+	}
+
+	@Override
+	public boolean morePositiveMoreDiverse() {
+		return false;
+	}
+
+	@Override
+	public double getSimilarityThreshold(double similarityThreshold) {
+		// The similarity, the double fault itself, is in [0, 1].
+		return (1.0 - similarityThreshold) / 2.0;
+	}
+
+}
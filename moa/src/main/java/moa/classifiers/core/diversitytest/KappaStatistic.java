@@ -0,0 +1,26 @@
+package moa.classifiers.core.diversitytest;
+
+/**
+ * Kappa statistic: chance-corrected agreement between the correctness of the two classifiers.
+ */
+public class KappaStatistic extends AbstractPairwiseDiversityTest {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public double getPairwiseScore(PairwiseContingencyEngine.Contingency contingency) {
+		return contingency.getKappa();
+	}
+
+	@Override
+	public boolean morePositiveMoreDiverse() {
+		return false;
+	}
+
+	@Override
+	public double getSimilarityThreshold(double similarityThreshold) {
+		// Same [-1, 1] range as Q.
+		return -similarityThreshold;
+	}
+
+}
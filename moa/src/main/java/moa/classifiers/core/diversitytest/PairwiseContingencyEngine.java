@@ -0,0 +1,102 @@
+package moa.classifiers.core.diversitytest;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+
+/**
+ * Pairwise diversity measures for classifiers evaluated on one chunk.
+ * 
+ * Each classifier predicts every instance of the chunk once; its correctness
+ * vector is cached, so any number of pairs and measures can be scored without
+ * further predictions. All measures are computed from the same 2x2
+ * contingency counts (Kuncheva and Whitaker, 2003).
+ */
+public class PairwiseContingencyEngine {
+	
+	private List<Instance> chunk;
+	
+	private Map<Classifier, boolean[]> correctness;
+	
+	public PairwiseContingencyEngine(List<Instance> chunk) {
+		this.chunk = new ArrayList<Instance>(chunk);
+		this.correctness = new IdentityHashMap<Classifier, boolean[]>();
+	}
+	
+	public boolean[] getCorrectness(Classifier d) {
+		return this.correctness.computeIfAbsent(d, classifier -> QStatistics.getCorrectness(this.chunk, classifier));
+	}
+	
+	public Contingency getContingency(Classifier d1, Classifier d2) {
+		return Contingency.of(this.getCorrectness(d1), this.getCorrectness(d2));
+	}
+	
+	/*
+	 * tt: both correct, tf: only d1 correct, ft: only d2 correct, ff: both wrong.
+	 */
+	public static class Contingency {
+		
+		private final double tt, tf, ft, ff;
+		
+		public Contingency(double tt, double tf, double ft, double ff) {
+			this.tt = tt;
+			this.tf = tf;
+			this.ft = ft;
+			this.ff = ff;
+		}
+		
+		public static Contingency of(boolean[] d1Correct, boolean[] d2Correct) {
+			double tt = 0.0, tf = 0.0, ft = 0.0, ff = 0.0;
+			for (int i = 0; i < d1Correct.length; ++i) {
+				if (d1Correct[i]) {
+					if (d2Correct[i]) {
+						++tt;
+					} else {
+						++tf;
+					}
+				} else {
+					if (d2Correct[i]) {
+						++ft;
+					} else {
+						++ff;
+					}
+				}
+			}
+			return new Contingency(tt, tf, ft, ff);
+		}
+		
+		public double getQStatistic() {
+			return QStatistics.getQScore(this.tt, this.tf, this.ft, this.ff);
+		}
+		
+		public double getCorrelation() {
+			double a = this.tt * this.ff;
+			double b = this.ft * this.tf;
+			return (a - b) / Math.sqrt((this.tt + this.tf) * (this.ft + this.ff) * (this.tt + this.ft) * (this.tf + this.ff));
+		}
+		
+		public double getDisagreement() {
+			return (this.tf + this.ft) / this.total();
+		}
+		
+		public double getDoubleFault() {
+			return this.ff / this.total();
+		}
+		
+		public double getKappa() {
+			double n = this.total();
+			double observed = (this.tt + this.ff) / n;
+			double expected = ((this.tt + this.tf) * (this.tt + this.ft) + (this.ft + this.ff) * (this.tf + this.ff)) / (n * n);
+			return (observed - expected) / (1.0 - expected);
+		}
+		
+		private double total() {
+			return this.tt + this.tf + this.ft + this.ff;
+		}
+	}
+}
@@ -38,6 +38,76 @@ public class QStatistics extends AbstractOptionHandler implements DiversityTest
 		return (a - b) / (a + b);
 	 }
 	
+	public static boolean[] getCorrectness(List<Instance> chunk, Classifier d) {
+		boolean[] correct = new boolean[chunk.size()];
+		for (int i = 0; i < correct.length; ++i) {
+			correct[i] = d.correctlyClassifies(chunk.get(i));
+		}
+		return correct;
+	}
+	
+	/*
+	 * Q score from the contingency counts, same formula as getQScoreForTwo.
+	 * Non-decreasing in tt and ff, non-increasing in tf and ft.
+	 */
+	protected static double getQScore(double tt, double tf, double ft, double ff) {
+		double a = tt * ff;
+		double b = ft * tf;
+		
+		return (a - b) / (a + b);
+	}
+	
+	/**
+	 * Same value as getQScoreForTwo(chunk, d1, d2), with d1's correctness on the chunk
+	 * precomputed, but gives up on the pair as soon as the final score is decided
+	 * relative to the cut-offs. The outcome of every instance still to be scanned is
+	 * known for d1, so the best completion puts all of them on the diagonal (tt, ff)
+	 * and the worst completion puts all of them off it (tf, ft).
+	 * 
+	 * @return the exact Q score, Double.NEGATIVE_INFINITY if it is certainly below
+	 * abandonBelow, or Double.POSITIVE_INFINITY if it is certainly above abandonAbove.
+	 */
+	public static double getBoundedQScoreForTwo(List<Instance> chunk, boolean[] d1Correct, Classifier d2,
+			double abandonBelow, double abandonAbove) {
+		double remainingTrue = 0.0;
+		for (boolean correct : d1Correct) {
+			if (correct) {
+				++remainingTrue;
+			}
+		}
+		double remainingFalse = d1Correct.length - remainingTrue;
+		
+		double tt = 0.0, tf = 0.0, ft = 0.0, ff = 0.0;
+		for (int i = 0; i < d1Correct.length; ++i) {
+			boolean d2Correct = d2.correctlyClassifies(chunk.get(i));
+			if (d1Correct[i]) {
+				--remainingTrue;
+				if (d2Correct) {
+					++tt;
+				} else {
+					++tf;
+				}
+			} else {
+				--remainingFalse;
+				if (d2Correct) {
+					++ft;
+				} else {
+					++ff;
+				}
+			}
+			
+			// Comparisons against NaN bounds are false, so undefined bounds never abandon.
+			if (getQScore(tt + remainingTrue, tf, ft, ff + remainingFalse) < abandonBelow) {
+				return Double.NEGATIVE_INFINITY;
+			}
+			if (getQScore(tt, tf + remainingTrue, ft + remainingFalse, ff) > abandonAbove) {
+				return Double.POSITIVE_INFINITY;
+			}
+		}
+		
+		return getQScore(tt, tf, ft, ff);
+	}
+	
 	public QStatistics() {
 		this.testChunk = null;
 		this.classifierPool = null;
@@ -93,4 +163,14 @@ public class QStatistics extends AbstractOptionHandler implements DiversityTest
 		return false;
 	}
 
+	@Override
+	public double getPairwiseScore(PairwiseContingencyEngine.Contingency contingency) {
+		return contingency.getQStatistic();
+	}
+	
+	@Override
+	public double getSimilarityThreshold(double similarityThreshold) {
+		return -similarityThreshold;
+	}
+
 }
@@ -0,0 +1,81 @@
+/*
+ *    ReplayedChangeDetector.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.core.driftdetection;
+
+import moa.core.ObjectRepository;
+import moa.tasks.TaskMonitor;
+
+/**
+ * Change detector that ignores its input and replays recorded decisions, one
+ * per call to input(), so that a learner sees the same drift and warning
+ * points as in a recorded run. After the last recorded decision it reports
+ * neither.
+ *
+ * It has no command line options; the decisions are given when it is
+ * constructed.
+ */
+public class ReplayedChangeDetector extends AbstractChangeDetector {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final byte CHANGE = 1;
+
+	public static final byte WARNING = 2;
+
+	protected byte[] decisions;
+
+	protected int position;
+
+	public ReplayedChangeDetector() {
+		this(new byte[0]);
+	}
+
+	/*
+	 * decisions[i] is a combination of CHANGE and WARNING for the i-th input.
+	 */
+	public ReplayedChangeDetector(byte[] decisions) {
+		this.decisions = decisions;
+		resetLearning();
+	}
+
+	@Override
+	public void resetLearning() {
+		super.resetLearning();
+		this.position = 0;
+	}
+
+	@Override
+	public void input(double inputValue) {
+		byte decision = this.position < this.decisions.length ? this.decisions[this.position] : 0;
+		this.position++;
+		this.isChangeDetected = (decision & CHANGE) != 0;
+		this.isWarningZone = (decision & WARNING) != 0;
+		this.estimation = inputValue;
+	}
+
+	@Override
+	public void getDescription(StringBuilder sb, int indent) {
+		sb.append("Replay of ").append(this.decisions.length).append(" recorded decisions");
+	}
+
+	@Override
+	protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+		resetLearning();
+	}
+}
@@ -19,25 +19,38 @@
  */
 package moa.classifiers.meta;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
+import com.github.javacliparser.FileOption;
+import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.FloatOption;
 import com.github.javacliparser.IntOption;
+import com.github.javacliparser.ListOption;
 import com.github.javacliparser.MultiChoiceOption;
+import com.github.javacliparser.Option;
 import com.github.javacliparser.StringOption;
 import com.yahoo.labs.samoa.instances.Attribute;
 import com.yahoo.labs.samoa.instances.DenseInstance;
 import com.yahoo.labs.samoa.instances.Instance;
 import com.yahoo.labs.samoa.instances.Instances;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
 import com.yahoo.labs.samoa.instances.SamoaToWekaInstanceConverter;
 
 import moa.classifiers.AbstractClassifier;
 import moa.classifiers.Classifier;
 import moa.classifiers.MultiClassClassifier;
+import moa.classifiers.core.diversitytest.DiversityTest;
+import moa.classifiers.core.diversitytest.PairwiseContingencyEngine;
 import moa.classifiers.core.diversitytest.QStatistics;
 import moa.classifiers.core.driftdetection.ChangeDetector;
+import moa.classifiers.trees.CompactHoeffdingTree;
+import moa.classifiers.trees.HoeffdingTree;
 import moa.core.AutoClassDiscovery;
 import moa.core.AutoExpandVector;
 import moa.core.DoubleVector;
@@ -52,6 +65,18 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 	 */
 	private static final long serialVersionUID = 1L;
 	
+	/*
+	 * Bits of getLastTransitions(). The first two are the drift detector's own output,
+	 * whether or not CDCMS acted on it.
+	 */
+	public static final int TRANSITION_DETECTOR_CHANGE = 1;
+	public static final int TRANSITION_DETECTOR_WARNING = 1 << 1;
+	public static final int TRANSITION_DRIFT_HANDLED = 1 << 2;
+	public static final int TRANSITION_WINDOW = 1 << 3;
+	public static final int TRANSITION_NL_RECOVERY = 1 << 4;
+	public static final int TRANSITION_PRECOMPUTED = 1 << 5;
+	public static final int TRANSITION_CLUSTERED = 1 << 6;
+	
 	public ClassOption baseLearnerOption = new ClassOption("baseLearner", 'l',
             "The Base Learner.", Classifier.class, "trees.HoeffdingTree -l NB"); //trees.HoeffdingTree -e 2000000 -g 100 -c 0.01
 	
@@ -68,7 +93,15 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 			"Fading Factor for prequential accuracy calculation on test chunk", 0.999);
 	
 	public FloatOption similarityThresholdOption = new FloatOption("similarityThreshold", 's',
-			"similarityThreshold", 0.8, 0.0, 1.0);
+			"Similarity threshold in [0, 1], for Q mapped to -s; each diversityTest maps it onto its own range.", 0.8, 0.0, 1.0);
+	
+	public ClassOption diversityTestOption = new ClassOption("diversityTest", 'q',
+			"Pairwise diversity measure used to find the most similar repository model.", DiversityTest.class, "QStatistics");
+	
+	public ListOption shadowDiversityTestsOption = new ListOption("shadowDiversityTests", 'h',
+			"Diversity measures evaluated alongside diversityTest, from the same predictions, to report how often they agree with it.",
+			new ClassOption("shadowDiversityTest", ' ', "Diversity measure.", DiversityTest.class, "QStatistics"),
+			new Option[0], ',');
 	
 	public ClassOption driftDetectorOption = new ClassOption("driftDetector", 'd',
             "Drift detection method to use.", ChangeDetector.class, "ADWINChangeDetector");
@@ -79,8 +112,63 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
             "Parameters that will be passed to the weka algorithm. (e.g. '-N 5' for using SimpleKmeans with 5 clusters)",
             "-I 100 -N -1 -X 10 -max -1 -ll-cv 1.0E-6 -ll-iter 1.0E-6 -M 1.0E-6 -K 10 -num-slots 1 -S 100");
 	
+	public MultiChoiceOption modelSpaceReductionOption = new MultiChoiceOption("modelSpaceReduction", 'm',
+			"Reduction of the model-space vectors (one dimension per window instance) before clustering.",
+			new String[] { "None", "RandomProjection", "StratifiedSubsample" },
+			new String[] { "Cluster the full correctness vectors",
+						   "Dense random projection with random +-1/sqrt(t) entries (Achlioptas, Johnson-Lindenstrauss)",
+						   "One random window position per stratum" }, 0);
+	
+	public IntOption reducedDimensionsOption = new IntOption("reducedDimensions", 't',
+			"Number of dimensions the model-space vectors are reduced to when modelSpaceReduction is not None.",
+			100, 1, Integer.MAX_VALUE);
+	
+	public FlagOption earlyExitVotingOption = new FlagOption("earlyExitVoting", 'e',
+			"Where only the predicted class is needed, WM ensembles query members in descending weight order "
+			+ "and stop once the remaining weight cannot change the argmax.");
+	
+	public FlagOption flatVoteAggregationOption = new FlagOption("flatVoteAggregation", 'v',
+			"Combine votes by accumulating them in place into one array instead of through one DoubleVector per voter.");
+	
+	public FlagOption precomputeOnWarningOption = new FlagOption("precomputeOnWarning", 'r',
+			"Compute the drift response (repository replacement and clustering) when the drift detector enters "
+			+ "its warning zone, and only commit it if the drift is confirmed.");
+	
+	public FlagOption concurrentInferenceOption = new FlagOption("concurrentInference", 'c',
+			"Predict from an immutable snapshot of the ensembles, so getVotesForInstance can be called from other "
+			+ "threads while training. Ensemble and member weights are republished after every instance. NL models are "
+			+ "copied at drifts, window boundaries and every inferenceRefreshInterval instances, so predictions use NL "
+			+ "models at most inferenceRefreshInterval - 1 instances behind the trained ones. Hoeffding trees are copied "
+			+ "as prediction-only compact trees, which costs about as much as training them on one instance.");
+	
+	public IntOption inferenceRefreshIntervalOption = new IntOption("inferenceRefreshInterval", 'g',
+			"With concurrentInference, number of instances between copies of the NL models into the snapshot "
+			+ "(1 = every instance). Bounds how stale the NL models used for prediction can be.", 10, 1, Integer.MAX_VALUE);
+	
+	public FloatOption latencyTargetOption = new FloatOption("latencyTarget", 'u',
+			"Target mean time per instance in microseconds, prediction and training with drift handling amortised. "
+			+ "ensembleSize and repositorySizeMultiple are then adapted once per window, up to their set values. 0 keeps them fixed.",
+			0.0, 0.0, Double.MAX_VALUE);
+	
+	public FlagOption freezeRepositoryModelsOption = new FlagOption("freezeRepositoryModels", 'z',
+			"Store repository models that are HoeffdingTrees as compact prediction-only trees, "
+			+ "thawed back into full learners when recovered into NL.");
+	
+	public FileOption conceptLibraryOption = new FileOption("conceptLibrary", 'a',
+			"Concept library, exported from a CDCMS on a stream with the same schema, to start the repository with. "
+			+ "A model is read when first used, which is at the first drift at the latest, when the repository is clustered.",
+			null, "library", false);
+	
 	protected double similarityThreshold;
 	
+	protected DiversityTest diversityTest;
+	
+	protected DiversityTest[] shadowDiversityTests;
+	
+	protected long similaritySearches;
+	
+	protected long[] shadowAgreements;
+	
 	protected EnsembleWithInfo ensemble_NL;
 	
 	protected EnsembleWithInfo ensemble_NH;
@@ -92,6 +180,10 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 	protected List<ClassifierWithInfo> repository;
 	protected int maxRepositorySize;
 	
+	protected int effectivePoolSize;
+	
+	protected LatencyController latencyController;
+	
 	protected ChangeDetector driftDetector;
 	
 	protected List<Instance> instWindow;
@@ -111,6 +203,21 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 	
 	protected SamoaToWekaInstanceConverter instanceConverter;
 	
+	protected ModelSpaceReducer modelSpaceReducer;
+	
+	protected LongAdder skippedMemberEvaluations;
+	
+	/* Not serialised: a deserialised CDCMS still in the warning zone computes it again on the next instance. */
+	protected transient DriftResponse speculativeDriftResponse;
+	
+	/* Only with concurrentInference. Not serialised: it is published again from the ensembles on deserialisation. */
+	protected transient volatile InferenceSnapshot inferenceSnapshot;
+	protected int instancesSinceNLSnapshot;
+	
+	protected int lastTransitions;
+	
+	protected String conceptLibrarySchema;
+	
 	public CDCMS() {
 		this.clustererClasses = findWekaClustererClasses();
         String[] optionLabels = new String[clustererClasses.length];
@@ -139,8 +246,22 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 	@Override
 	public void resetLearningImpl() {
 		
-		// *-1, because more negative means more diverse in QStatistics.
-		this.similarityThreshold = this.similarityThresholdOption.getValue() * -1;
+		this.diversityTest = (DiversityTest) getPreparedClassOption(this.diversityTestOption);
+		
+		// *-1 for QStatistics, because more negative means more diverse; other measures have their own range.
+		this.similarityThreshold = this.diversityTest.getSimilarityThreshold(this.similarityThresholdOption.getValue());
+		
+		Option[] shadowOptions = this.shadowDiversityTestsOption.getList();
+		this.shadowDiversityTests = new DiversityTest[shadowOptions.length];
+		for (int i = 0; i < shadowOptions.length; ++i) {
+			try {
+				this.shadowDiversityTests[i] = (DiversityTest) ClassOption.cliStringToObject(shadowOptions[i].getValueAsCLIString(), DiversityTest.class, null);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Problem creating shadow diversity test " + shadowOptions[i].getValueAsCLIString(), e);
+			}
+		}
+		this.similaritySearches = 0;
+		this.shadowAgreements = new long[this.shadowDiversityTests.length];
 		
 		this.driftDetector = ((ChangeDetector) getPreparedClassOption(this.driftDetectorOption)).copy();
 		
@@ -155,7 +276,12 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 		this.ensemble_NH = null;
 		
 		this.maxRepositorySize = this.repositorySizeOption.getValue() * this.poolSizeOption.getValue();
+		this.effectivePoolSize = this.poolSizeOption.getValue();
+		this.latencyController = this.latencyTargetOption.getValue() > 0.0
+				? new LatencyController(this.latencyTargetOption.getValue(), this.poolSizeOption.getValue(), this.repositorySizeOption.getValue())
+				: null;
 		this.repository = new ArrayList<ClassifierWithInfo>(this.maxRepositorySize);
+		this.importConceptLibrary();
 		
 		this.instWindow = new ArrayList<Instance>(this.windowSizeOption.getValue());
 		this.instSeenAfterDrift = 0;
@@ -167,11 +293,112 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 		
 		this.instanceConverter = new SamoaToWekaInstanceConverter();
 		
+		this.modelSpaceReducer = new ModelSpaceReducer(ModelSpaceReducer.Method.values()[this.modelSpaceReductionOption.getChosenIndex()],
+													   this.reducedDimensionsOption.getValue(), 1);
+		
 		this.changeDetected = 0;
         this.warningDetected = 0;
         this.previous_drift_level = DRIFT_LEVEL.NORMAL;
         this.drift_level = DRIFT_LEVEL.NORMAL;
         
+        this.skippedMemberEvaluations = new LongAdder();
+        this.speculativeDriftResponse = null;
+        
+        this.inferenceSnapshot = null;
+        if (this.concurrentInferenceOption.isSet()) {
+        	this.publishInferenceSnapshot();
+        }
+        
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (this.concurrentInferenceOption.isSet() && this.ensemble_NL != null) {
+			this.publishInferenceSnapshot();
+		}
+	}
+	
+	/*
+	 * Seeds the repository from conceptLibrary, reading only the library's index. Models are
+	 * taken in library order as if retired from NL: once the repository is full, a model replaces
+	 * its most similar one if it has seen more training, and is dropped otherwise. Similarity is
+	 * measured on the correctness profiles, so no model is loaded. Models without a profile (a
+	 * library exported just after a drift) are never similar, so only the first ones are kept.
+	 */
+	private void importConceptLibrary() {
+		this.conceptLibrarySchema = null;
+		File file = this.conceptLibraryOption.getFile();
+		if (file == null) {
+			return;
+		}
+		
+		ConceptLibrary library;
+		try {
+			library = ConceptLibrary.open(file);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Problem reading concept library " + file, e);
+		}
+		this.conceptLibrarySchema = library.schema;
+		if (this.getModelContext() != null) {
+			this.checkConceptLibrarySchema(this.getModelContext());
+		}
+		
+		List<boolean[]> profiles = new ArrayList<boolean[]>(this.maxRepositorySize);
+		for (ConceptLibrary.Entry entry : library.entries) {
+			ClassifierWithInfo imported = new ClassifierWithInfo(entry, this.fadingFactorOption.getValue());
+			
+			if (this.repository.size() < this.maxRepositorySize) {
+				this.repository.add(imported);
+				profiles.add(entry.profile);
+				continue;
+			}
+			
+			PairwiseContingencyEngine.Contingency[] contingencies = new PairwiseContingencyEngine.Contingency[profiles.size()];
+			for (int i = 0; i < contingencies.length; ++i) {
+				contingencies[i] = PairwiseContingencyEngine.Contingency.of(entry.profile, profiles.get(i));
+			}
+			int mostSimilarIndex = this.selectMostSimilar(this.diversityTest, contingencies, this.repository);
+			
+			if (mostSimilarIndex > -1 && entry.trainingWeight > this.repository.get(mostSimilarIndex).getTrainingWeightSeenByModel()) {
+				this.repository.remove(mostSimilarIndex);
+				profiles.remove(mostSimilarIndex);
+				this.repository.add(imported);
+				profiles.add(entry.profile);
+			}
+		}
+	}
+	
+	@Override
+	public void setModelContext(InstancesHeader ih) {
+		super.setModelContext(ih);
+		if (this.conceptLibrarySchema != null && ih != null) {
+			this.checkConceptLibrarySchema(ih);
+		}
+	}
+	
+	/*
+	 * Fails if the imported library's models were trained on another schema. Checked once,
+	 * at reset if the model context is already set, else when it is set or at the first instance.
+	 */
+	private void checkConceptLibrarySchema(Instances header) {
+		if (!this.conceptLibrarySchema.equals(ConceptLibrary.schemaOf(header))) {
+			throw new IllegalArgumentException("Concept library " + this.conceptLibraryOption.getFile()
+					+ " was exported from a stream with a different schema.");
+		}
+		this.conceptLibrarySchema = null;
+	}
+	
+	/*
+	 * Writes the repository to a concept library for conceptLibrary. The correctness profiles
+	 * are taken on the current window, which is empty just after a drift.
+	 */
+	public void exportConceptLibrary(File file) throws IOException {
+		try (ConceptLibrary.Writer writer = new ConceptLibrary.Writer(file, this.getModelContext())) {
+			for (ClassifierWithInfo model : this.repository) {
+				writer.add(model.getActualClassifier(), model.getClusterLabel(),
+						   QStatistics.getCorrectness(this.instWindow, model.getActualClassifier()));
+			}
+		}
 	}
 	
 	private void initPredictionErrorStorage(int numAtt) {
@@ -205,40 +432,67 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 
 	@Override
 	public double[] getVotesForInstance(Instance inst) {
+		LatencyController controller = this.latencyController;
+		long start = controller != null ? System.nanoTime() : 0L;
+		
+		double[] votes;
+		if (this.concurrentInferenceOption.isSet()) {
+			// One volatile read; everything below only touches the snapshot.
+			InferenceSnapshot snapshot = this.inferenceSnapshot;
+			votes = this.getVotesForInstance(inst, snapshot.drift_level, snapshot.ensemble_NL, snapshot.ensemble_OL, snapshot.ensemble_NH);
+		} else {
+			votes = this.getVotesForInstance(inst, this.drift_level, this.ensemble_NL, this.ensemble_OL, this.ensemble_NH);
+		}
+		
+		if (controller != null) {
+			controller.recordPrediction(System.nanoTime() - start);
+		}
+		return votes;
+	}
+	
+	private double[] getVotesForInstance(Instance inst, DRIFT_LEVEL drift_level,
+			EnsembleWithInfo ensemble_NL, EnsembleWithInfo ensemble_OL, EnsembleWithInfo ensemble_NH) {
 		
 		double[] to_return = null;
 		
-		double accuracy_NL = this.ensemble_NL.getPrequentialAccuracy();
-		double accuracy_OL = this.ensemble_OL == null ? 0.0 : this.ensemble_OL.getPrequentialAccuracy();
-		double accuracy_NH = this.ensemble_NH == null ? 0.0 : this.ensemble_NH.getPrequentialAccuracy();
+		double accuracy_NL = ensemble_NL.getPrequentialAccuracy();
+		double accuracy_OL = ensemble_OL == null ? 0.0 : ensemble_OL.getPrequentialAccuracy();
+		double accuracy_NH = ensemble_NH == null ? 0.0 : ensemble_NH.getPrequentialAccuracy();
 		
 		double accuracySum = accuracy_OL + accuracy_NH + accuracy_NL;
 		
 		DoubleVector combinedVote = new DoubleVector();
 		
-		switch (this.drift_level) {
+		switch (drift_level) {
+			case WARNING:
 			case NORMAL:
-				if (this.ensemble_OL != null && this.ensemble_NH != null &&
+				if (ensemble_OL != null && ensemble_NH != null &&
+						accuracy_NL < accuracy_OL && accuracy_NL < accuracy_NH &&
+						this.flatVoteAggregationOption.isSet()) {
+					
+					to_return = this.getFlatCombinedVotes(inst, ensemble_OL, ensemble_NH, ensemble_NL, accuracy_OL, accuracy_NH, accuracy_NL, accuracySum);
+					
+				} else if (ensemble_OL != null && ensemble_NH != null &&
 						accuracy_NL < accuracy_OL && accuracy_NL < accuracy_NH) {
 					
-					if (this.ensemble_OL.estimation > 0.0) {
-						DoubleVector vote = new DoubleVector(this.ensemble_OL.getVotesForInstance(inst));
+					if (ensemble_OL.estimation > 0.0) {
+						DoubleVector vote = new DoubleVector(ensemble_OL.getVotesForInstance(inst));
 						if (vote.sumOfValues() > 0.0) {
 							vote.normalize();
 							vote.scaleValues(accuracy_OL / accuracySum);
 							combinedVote.addValues(vote);
 						}
 					}
-					if (this.ensemble_NH.estimation > 0.0) {
-						DoubleVector vote = new DoubleVector(this.ensemble_NH.getVotesForInstance(inst));
+					if (ensemble_NH.estimation > 0.0) {
+						DoubleVector vote = new DoubleVector(ensemble_NH.getVotesForInstance(inst));
 						if (vote.sumOfValues() > 0.0) {
 							vote.normalize();
 							vote.scaleValues(accuracy_NH / accuracySum);
 							combinedVote.addValues(vote);
 						}
 					}
-					if (this.ensemble_NL.estimation > 0.0) {
-						DoubleVector vote = new DoubleVector(this.ensemble_NL.getVotesForInstance(inst));
+					if (ensemble_NL.estimation > 0.0) {
+						DoubleVector vote = new DoubleVector(ensemble_NL.getVotesForInstance(inst));
 						if (vote.sumOfValues() > 0.0) {
 							vote.normalize();
 							vote.scaleValues(accuracy_NL / accuracySum);
@@ -248,31 +502,36 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 					to_return = combinedVote.getArrayRef();
 					
 				} else {
-					to_return = this.ensemble_NL.getVotesForInstance(inst);
+					to_return = ensemble_NL.getDecisiveVotesForInstance(inst);
 				}
 				
 					
 				break;
 			case OUTCONTROL:
 				
-				if (this.ensemble_OL.estimation > 0.0) {
-					DoubleVector vote = new DoubleVector(this.ensemble_OL.getVotesForInstance(inst));
+				if (this.flatVoteAggregationOption.isSet()) {
+					to_return = this.getFlatCombinedVotes(inst, ensemble_OL, ensemble_NH, ensemble_NL, accuracy_OL, accuracy_NH, accuracy_NL, accuracySum);
+					break;
+				}
+				
+				if (ensemble_OL.estimation > 0.0) {
+					DoubleVector vote = new DoubleVector(ensemble_OL.getVotesForInstance(inst));
 					if (vote.sumOfValues() > 0.0) {
 						vote.normalize();
 						vote.scaleValues(accuracy_OL / accuracySum);
 						combinedVote.addValues(vote);
 					}
 				}
-				if (this.ensemble_NH.estimation > 0.0) {
-					DoubleVector vote = new DoubleVector(this.ensemble_NH.getVotesForInstance(inst));
+				if (ensemble_NH.estimation > 0.0) {
+					DoubleVector vote = new DoubleVector(ensemble_NH.getVotesForInstance(inst));
 					if (vote.sumOfValues() > 0.0) {
 						vote.normalize();
 						vote.scaleValues(accuracy_NH / accuracySum);
 						combinedVote.addValues(vote);
 					}
 				}
-				if (this.ensemble_NL.estimation > 0.0) {
-					DoubleVector vote = new DoubleVector(this.ensemble_NL.getVotesForInstance(inst));
+				if (ensemble_NL.estimation > 0.0) {
+					DoubleVector vote = new DoubleVector(ensemble_NL.getVotesForInstance(inst));
 					if (vote.sumOfValues() > 0.0) {
 						vote.normalize();
 						vote.scaleValues(accuracy_NL / accuracySum);
@@ -289,8 +548,38 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 		return to_return;
 	}
 	
-	private void clusteringModels() throws Exception {
-		weka.core.Instances wekaInstances = this.instanceConverter.wekaInstances(this.predictionErrorByClassifierFromRepo);
+	/*
+	 * Same as the DoubleVector combination of OL, NH and NL in getVotesForInstance, through VoteAggregator.
+	 */
+	private double[] getFlatCombinedVotes(Instance inst, EnsembleWithInfo ensemble_OL, EnsembleWithInfo ensemble_NH,
+			EnsembleWithInfo ensemble_NL, double accuracy_OL, double accuracy_NH, double accuracy_NL, double accuracySum) {
+		VoteAggregator aggregator = new VoteAggregator(inst.numClasses());
+		if (ensemble_OL.estimation > 0.0) {
+			aggregator.add(ensemble_OL.getVotesForInstance(inst), accuracy_OL / accuracySum);
+		}
+		if (ensemble_NH.estimation > 0.0) {
+			aggregator.add(ensemble_NH.getVotesForInstance(inst), accuracy_NH / accuracySum);
+		}
+		if (ensemble_NL.estimation > 0.0) {
+			aggregator.add(ensemble_NL.getVotesForInstance(inst), accuracy_NL / accuracySum);
+		}
+		return aggregator.aggregate();
+	}
+	
+	/*
+	 * Clusters the rows of predictionErrorByClassifierFromRepo and labels models.get(i)
+	 * with the cluster of row i.
+	 */
+	private void clusteringModels(List<ClassifierWithInfo> models) throws Exception {
+		CDCMSEvents.Clustering clusteringEvent = new CDCMSEvents.Clustering();
+		clusteringEvent.begin();
+		
+		Instances modelSpace = this.predictionErrorByClassifierFromRepo;
+		if (this.modelSpaceReducer.reduces(modelSpace.numAttributes() - 1)) {
+			modelSpace = this.modelSpaceReducer.reduce(modelSpace);
+		}
+		
+		weka.core.Instances wekaInstances = this.instanceConverter.wekaInstances(modelSpace);
 			
 		weka.filters.unsupervised.attribute.Remove filter = new weka.filters.unsupervised.attribute.Remove();
 		filter.setAttributeIndices("" + (wekaInstances.classIndex() + 1));
@@ -306,38 +595,113 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 				int clusterLabel = this.clusterer.clusterInstance(wekaInstNoClass);
 				int instIndex = wekaInstancesNoClass.indexOf(wekaInstNoClass);
 				this.predictionErrorByClassifierFromRepo.get(instIndex).setClassValue(clusterLabel);
-				if (instIndex < this.repository.size()) {
-					this.repository.get(instIndex).setClusterLabel(clusterLabel);
-				} else {
-					this.ensemble_NL.ensemble.get(0).setClusterLabel(clusterLabel);
-				}
+				models.get(instIndex).setClusterLabel(clusterLabel);
 						
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 		});
+		
+		if (clusteringEvent.shouldCommit()) {
+			clusteringEvent.modelsClustered = wekaInstancesNoClass.size();
+			clusteringEvent.dimensions = wekaInstancesNoClass.numAttributes();
+			clusteringEvent.clustersFound = this.clusterer.numberOfClusters();
+			clusteringEvent.commit();
+		}
 	}
 	
-	private int getMostSimilarAndNewFromRepo(ClassifierWithInfo target) {
+	private int getMostSimilarAndNewFromRepo(ClassifierWithInfo target, List<ClassifierWithInfo> repo, PairwiseContingencyEngine engine) {
 		
-		if (this.repository.size() == 0) {
+		if (repo.size() == 0) {
 			return -1;
 		}
 		
-		double[] qStatResults = new double[this.repository.size()];
+		if (!(this.diversityTest instanceof QStatistics) || this.shadowDiversityTests.length > 0) {
+			return this.getMostSimilarFromContingencies(target, repo, engine);
+		}
+		
+		/*
+		 * Same result as taking the argmax of the full Q scores (ties go to the model with
+		 * less training weight) and checking it against similarityThreshold, but:
+		 * - any score above the threshold makes the max fail it, so the search stops there;
+		 * - a pair that can no longer reach the best score so far is abandoned.
+		 */
+		boolean[] targetCorrect = QStatistics.getCorrectness(this.instWindow, target.getActualClassifier());
+		
+		int maxQIndex = -1;
+		double maxQ = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < repo.size(); ++i) {
+			
+			double qStat = QStatistics.getBoundedQScoreForTwo(this.instWindow, targetCorrect, repo.get(i).getActualClassifier(),
+																maxQ, this.similarityThreshold);
+			
+			if (qStat > this.similarityThreshold || (i == 0 && Double.isNaN(qStat))) {
+				// The first score being NaN is never replaced as the max, and NaN fails the threshold.
+				return -1;
+			}
+			
+			if (maxQIndex == -1 || qStat > maxQ) {
+				if (!Double.isNaN(qStat)) {
+					maxQIndex = i;
+					maxQ = qStat;
+				}
+			} else if (qStat == maxQ) {
+				maxQIndex = (repo.get(i).getActualClassifier().trainingWeightSeenByModel() 
+								< repo.get(maxQIndex).getActualClassifier().trainingWeightSeenByModel()) ? i : maxQIndex;
+			} else {
+				/*
+				 * Do nothing.
+				 */
+			}
+		}
+		
+		return maxQIndex;
+	}
+	
+	/*
+	 * getMostSimilarAndNewFromRepo for any diversity test, plus the shadow tests. Every
+	 * measure is read off the same contingency counts, so the shadows cost no predictions.
+	 */
+	private int getMostSimilarFromContingencies(ClassifierWithInfo target, List<ClassifierWithInfo> repo, PairwiseContingencyEngine engine) {
 		
-		for (int i = 0; i < qStatResults.length; ++i) {
-			qStatResults[i] = QStatistics.getQScoreForTwo(this.instWindow, target.getActualClassifier(), this.repository.get(i).getActualClassifier());
+		PairwiseContingencyEngine.Contingency[] contingencies = new PairwiseContingencyEngine.Contingency[repo.size()];
+		for (int i = 0; i < contingencies.length; ++i) {
+			contingencies[i] = engine.getContingency(target.getActualClassifier(), repo.get(i).getActualClassifier());
 		}
 		
-		int maxQIndex = 0;
-		for (int i = 1; i < qStatResults.length; ++i) {
+		int mostSimilarIndex = this.selectMostSimilar(this.diversityTest, contingencies, repo);
+		
+		this.similaritySearches++;
+		for (int t = 0; t < this.shadowDiversityTests.length; ++t) {
+			if (this.selectMostSimilar(this.shadowDiversityTests[t], contingencies, repo) == mostSimilarIndex) {
+				this.shadowAgreements[t]++;
+			}
+		}
+		
+		return mostSimilarIndex;
+	}
+	
+	/*
+	 * Scores are turned into similarities (higher is more similar, as for Q) before taking
+	 * the argmax; ties go to the model with less training weight. The max is checked against
+	 * the test's own mapping of similarityThreshold.
+	 */
+	private int selectMostSimilar(DiversityTest test, PairwiseContingencyEngine.Contingency[] contingencies, List<ClassifierWithInfo> repo) {
+		
+		double[] similarity = new double[contingencies.length];
+		for (int i = 0; i < similarity.length; ++i) {
+			double score = test.getPairwiseScore(contingencies[i]);
+			similarity[i] = test.morePositiveMoreDiverse() ? -score : score;
+		}
+		
+		int maxIndex = 0;
+		for (int i = 1; i < similarity.length; ++i) {
 			
-			if (qStatResults[i] > qStatResults[maxQIndex]) {
-				maxQIndex = i;
-			} else if (qStatResults[i] == qStatResults[maxQIndex]) {
-				maxQIndex = (this.repository.get(i).getActualClassifier().trainingWeightSeenByModel() 
-								< this.repository.get(maxQIndex).getActualClassifier().trainingWeightSeenByModel()) ? i : maxQIndex;
+			if (similarity[i] > similarity[maxIndex]) {
+				maxIndex = i;
+			} else if (similarity[i] == similarity[maxIndex]) {
+				maxIndex = (repo.get(i).getTrainingWeightSeenByModel() 
+								< repo.get(maxIndex).getTrainingWeightSeenByModel()) ? i : maxIndex;
 			} else {
 				/*
 				 * Do nothing.
@@ -345,23 +709,135 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 			}
 		}
 		
-		return qStatResults[maxQIndex] <= this.similarityThreshold ? maxQIndex : -1;
+		return similarity[maxIndex] <= test.getSimilarityThreshold(this.similarityThresholdOption.getValue()) ? maxIndex : -1;
+	}
+	
+	/*
+	 * The expensive part of handling a drift: decide which NL models enter the repository
+	 * (replacing their most similar model once it is full) and, if asked, cluster the
+	 * resulting repository. Nothing is committed; this.repository is left untouched.
+	 */
+	private DriftResponse computeDriftResponse(boolean cluster) {
+		
+		DriftResponse response = new DriftResponse();
+		response.keptRepository = new ArrayList<ClassifierWithInfo>(this.repository);
+		response.isAdd = new boolean[this.ensemble_NL.size()];
+		
+		int tempMaxRepoSize = this.maxRepositorySize;
+		
+		// Neither the window nor the models change during the loop, so their predictions are shared.
+		PairwiseContingencyEngine engine = new PairwiseContingencyEngine(this.instWindow);
+		
+		for (int i = 0; i < this.ensemble_NL.size(); ++i) {
+			
+			if (response.keptRepository.size() < tempMaxRepoSize) {
+				response.isAdd[i] = true;
+				--tempMaxRepoSize;
+				continue;
+			}
+			
+			CDCMSEvents.RepositoryReplacement replacementEvent = new CDCMSEvents.RepositoryReplacement();
+			replacementEvent.begin();
+			
+			int mostSimilarIndex = this.getMostSimilarAndNewFromRepo(this.ensemble_NL.getActualEnsemble().get(i), response.keptRepository, engine);
+			
+			if (mostSimilarIndex > -1 &&
+					this.ensemble_NL.getActualEnsemble().get(i).getActualClassifier().trainingWeightSeenByModel() > 
+					response.keptRepository.get(mostSimilarIndex).getActualClassifier().trainingWeightSeenByModel()) {
+				
+				response.keptRepository.remove(mostSimilarIndex);
+				response.isAdd[i] = true;
+			} else {
+				response.isAdd[i] = false;
+			}
+			
+			if (replacementEvent.shouldCommit()) {
+				replacementEvent.trigger = "drift";
+				replacementEvent.repositorySize = response.keptRepository.size();
+				replacementEvent.mostSimilarIndex = mostSimilarIndex;
+				replacementEvent.candidateTrainingWeight = this.ensemble_NL.getActualEnsemble().get(i).getTrainingWeightSeenByModel();
+				replacementEvent.replaced = response.isAdd[i];
+				replacementEvent.commit();
+			}
+		}
+		
+		List<ClassifierWithInfo> models = new ArrayList<ClassifierWithInfo>(response.keptRepository);
+		for (int i = 0; i < response.isAdd.length; ++i) {
+			if (response.isAdd[i]) {
+				models.add(this.ensemble_NL.getActualEnsemble().get(i));
+			}
+		}
+		
+		if (cluster && models.size() > 1) {
+			response.clustered = true;
+			this.lastTransitions |= TRANSITION_CLUSTERED;
+			
+			this.initPredictionErrorStorage(this.instWindow.size());
+			for (ClassifierWithInfo classifier : models) {
+				this.predictionErrorByClassifierFromRepo.add(classifier.makePredictionOnInstances(this.instWindow));
+			}
+			
+			try {
+				this.clusteringModels(models);
+				response.numOfClusters = this.clusterer.numberOfClusters();
+			} catch (Exception e) {
+				e.printStackTrace();
+				response.clusteringFailed = true;
+			}
+			
+			this.predictionErrorByClassifierFromRepo.delete();
+			this.resetClusterer();
+		}
+		
+		return response;
 	}
 
 	@Override
 	public void trainOnInstanceImpl(Instance inst) {
 		
+		long start = this.latencyController != null ? System.nanoTime() : 0L;
+		
+		if (this.conceptLibrarySchema != null) {
+			// No model context was set, so the first instance is the first chance to check.
+			this.checkConceptLibrarySchema(inst.dataset());
+		}
+		
 		this.saveFIFO(this.instWindow, inst, this.windowSizeOption.getValue());
 		
-		double prediction = Utils.maxIndex(this.ensemble_NL.getVotesForInstance(inst)) == inst.classValue() ? 0.0 : 1.0;
+		// The snapshot taken at a drift predicts as OUTCONTROL; its NL is recopied on the next instance.
+		boolean afterDrift = this.previous_drift_level == DRIFT_LEVEL.OUTCONTROL;
+		boolean ensemblesChanged = false;
+		
+		double prediction = Utils.maxIndex(this.ensemble_NL.getDecisiveVotesForInstance(inst)) == inst.classValue() ? 0.0 : 1.0;
 		this.driftDetector.input(prediction);
 		
+		this.lastTransitions = 0;
+		if (this.driftDetector.getChange()) {
+			this.lastTransitions |= TRANSITION_DETECTOR_CHANGE;
+		}
+		if (this.driftDetector.getWarningZone()) {
+			this.lastTransitions |= TRANSITION_DETECTOR_WARNING;
+		}
+		
 		this.drift_level = DRIFT_LEVEL.NORMAL;
 		if (this.driftDetector.getChange()) {
 			this.drift_level = DRIFT_LEVEL.OUTCONTROL;
+		} else if (this.precomputeOnWarningOption.isSet() && this.driftDetector.getWarningZone()) {
+			this.drift_level = DRIFT_LEVEL.WARNING;
+		}
+		
+		if (this.drift_level == DRIFT_LEVEL.NORMAL) {
+			// The warning cleared without a drift.
+			this.speculativeDriftResponse = null;
+		} else if (this.drift_level == DRIFT_LEVEL.WARNING && this.speculativeDriftResponse == null) {
+			this.speculativeDriftResponse = this.computeDriftResponse(true);
+			this.lastTransitions |= TRANSITION_PRECOMPUTED;
+			this.warningDetected++;
 		}
 		
 		switch (this.drift_level) {
+			// Apart from the precomputation above, a warning is handled as NORMAL.
+			case WARNING:
 			case NORMAL:
 				if (this.instSeenAfterDrift == this.windowSizeOption.getValue() && this.changeDetected > 0 && this.repository.size() > 0) {
 	
@@ -369,14 +845,21 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 					// if CAN be determined: ensemble_NL = {C} ∪ {ClosestCluster.getModels(C, B)}
 					// otherwise ensemble_NL = {C}
 					
+					// NL and the cluster labels change, so a precomputed drift response is stale.
+					this.speculativeDriftResponse = null;
+					ensemblesChanged = true;
+					this.lastTransitions |= TRANSITION_NL_RECOVERY | TRANSITION_CLUSTERED;
+					
+					List<ClassifierWithInfo> models = new ArrayList<ClassifierWithInfo>(this.repository);
+					models.add(this.ensemble_NL.ensemble.get(0));
+					
 					this.initPredictionErrorStorage(this.instWindow.size());
-					for (ClassifierWithInfo classifier : this.repository) {
+					for (ClassifierWithInfo classifier : models) {
 						this.predictionErrorByClassifierFromRepo.add(classifier.makePredictionOnInstances(this.instWindow));
 					}
-					this.predictionErrorByClassifierFromRepo.add(this.ensemble_NL.ensemble.get(0).makePredictionOnInstances(this.instWindow));
 			
 					try {
-						this.clusteringModels();
+						this.clusteringModels(models);
 						
 						int clusterToRecover = this.ensemble_NL.ensemble.get(0).getClusterLabel();
 						
@@ -384,13 +867,15 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 						sortedRepo.sort(Comparator.comparing(ClassifierWithInfo::getTrainingWeightSeenByModel));
 						
 						for (ClassifierWithInfo classifier : sortedRepo) {
-							if (this.ensemble_NL.size() >= this.poolSizeOption.getValue()) {
+							if (this.ensemble_NL.size() >= this.effectivePoolSize) {
 								break;
 							}
 							if (classifier.getClusterLabel() == clusterToRecover) {
-								this.ensemble_NL.add(classifier);
+								this.ensemble_NL.addTrainable(classifier);
 							}
 						}
+						
+						this.emitRecoveryEvent("NL", this.ensemble_NL.size() - 1);
 
 					} catch (Exception e) {
 						e.printStackTrace();
@@ -401,31 +886,62 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 					
 					
 				} else if (this.instSeenAfterDrift % this.windowSizeOption.getValue() == 0 && this.trainingHasStarted()) {
+					
+					// NL and possibly the repository change, so a precomputed drift response is stale.
+					this.speculativeDriftResponse = null;
+					ensemblesChanged = true;
+					this.lastTransitions |= TRANSITION_WINDOW;
+					
+					if (this.latencyController != null) {
+						this.latencyController.adjust(this.ensemble_NL.size(), this.repository.size());
+						this.effectivePoolSize = this.latencyController.getPoolSize();
+						this.maxRepositorySize = this.latencyController.getRepositorySize();
+						this.shrinkRepository();
+					}
 
-					if (this.ensemble_NL.size() >= this.poolSizeOption.getValue()) {
+					// More than one model leaves only after the latency controller lowered the ensemble size.
+					while (this.ensemble_NL.size() >= this.effectivePoolSize) {
 						
 						// Get the worst model from ensemble_NL.
 						ClassifierWithInfo worstInNL = this.ensemble_NL.removeWorst();
+						this.emitEnsembleChangeEvent("NL", "retire worst", this.ensemble_NL.size());
 						
 						if (this.repository.size() >= this.maxRepositorySize) {
 							
-							int mostSimilarIndex = this.getMostSimilarAndNewFromRepo(worstInNL);
+							CDCMSEvents.RepositoryReplacement replacementEvent = new CDCMSEvents.RepositoryReplacement();
+							replacementEvent.begin();
+							
+							int mostSimilarIndex = this.getMostSimilarAndNewFromRepo(worstInNL, this.repository,
+																				 new PairwiseContingencyEngine(this.instWindow));
+							boolean replaced = false;
 							
 		 					if (mostSimilarIndex > -1 &&
 		 							worstInNL.getActualClassifier().trainingWeightSeenByModel() > this.repository.get(mostSimilarIndex).getActualClassifier().trainingWeightSeenByModel()) {
 		 						
 		 						this.repository.remove(mostSimilarIndex);
 								worstInNL.resetPrequentialAccuracy();
+								worstInNL.freeze();
 								this.repository.add(worstInNL);
+								replaced = true;
 								
 							} else {
 								/**
 								 * Do nothing, worstInNL will then be discarded.
 								 */
 							}
+		 					
+		 					if (replacementEvent.shouldCommit()) {
+		 						replacementEvent.trigger = "window";
+		 						replacementEvent.repositorySize = this.repository.size();
+		 						replacementEvent.mostSimilarIndex = mostSimilarIndex;
+		 						replacementEvent.candidateTrainingWeight = worstInNL.getTrainingWeightSeenByModel();
+		 						replacementEvent.replaced = replaced;
+		 						replacementEvent.commit();
+		 					}
 
 						} else {
 							worstInNL.resetPrequentialAccuracy();
+							worstInNL.freeze();
 							this.repository.add(worstInNL);
 						}
 						
@@ -433,6 +949,7 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 					}
 
 					this.ensemble_NL.add(this.candidate);
+					this.emitEnsembleChangeEvent("NL", "add candidate", this.ensemble_NL.size());
 					
 					this.candidate = new ClassifierWithInfo(((Classifier) this.getPreparedClassOption(this.baseLearnerOption)).copy(),
 							this.fadingFactorOption.getValue());
@@ -447,60 +964,41 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 				break;
 				
 			case OUTCONTROL:
-				this.ensemble_OL = new EnsembleWithInfo(this.ensemble_NL);
+				CDCMSEvents.DriftHandled driftEvent = new CDCMSEvents.DriftHandled();
+				driftEvent.begin();
+				this.lastTransitions |= TRANSITION_DRIFT_HANDLED;
+				int instancesSincePreviousDrift = this.instSeenAfterDrift;
+				int repositorySizeBeforeDrift = this.repository.size();
 				
-				// Use NL because it will be clear afterwards, so can reset the prequential accuracy of the models without affecting OL 
-				Boolean[] isAdd = new Boolean[this.ensemble_NL.size()];
+				this.ensemble_OL = new EnsembleWithInfo(this.ensemble_NL);
+				this.emitEnsembleChangeEvent("OL", "create from NL", this.ensemble_OL.size());
 				
-				int tempMaxRepoSize = this.maxRepositorySize;
+				DriftResponse response = this.speculativeDriftResponse != null ? this.speculativeDriftResponse
+						: this.computeDriftResponse(this.previous_drift_level == DRIFT_LEVEL.NORMAL);
+				this.speculativeDriftResponse = null;
 				
-				for (int i = 0; i < this.ensemble_NL.size(); ++i) {
-					
-					if (this.repository.size() < tempMaxRepoSize) {
-						isAdd[i] = true;
-						--tempMaxRepoSize;
-						continue;
-					}
-					
-					int mostSimilarIndex = this.getMostSimilarAndNewFromRepo(this.ensemble_NL.getActualEnsemble().get(i));
-					
-					if (mostSimilarIndex > -1 &&
-							this.ensemble_NL.getActualEnsemble().get(i).getActualClassifier().trainingWeightSeenByModel() > 
-							this.repository.get(mostSimilarIndex).getActualClassifier().trainingWeightSeenByModel()) {
-						
- 						this.repository.remove(mostSimilarIndex);
- 						isAdd[i] = true;
-					} else {
-						isAdd[i] = false;
-					}
-				}
-				
-				for (int i = 0; i < isAdd.length; ++i) {
-					if (isAdd[i]) {
+				// Use NL because it will be clear afterwards, so can reset the prequential accuracy of the models without affecting OL 
+				this.repository = response.keptRepository;
+				for (int i = 0; i < response.isAdd.length; ++i) {
+					if (response.isAdd[i]) {
 						ClassifierWithInfo toAdd = this.ensemble_NL.getActualEnsemble().get(i).copy();
 						toAdd.resetPrequentialAccuracy();
+						toAdd.freeze();
 						this.repository.add(toAdd);
 					}
 				}
 				
 				this.ensemble_NL.clear();
+				this.emitEnsembleChangeEvent("NL", "retire", 0);
 				
 				this.ensemble_NH = new EnsembleWithInfo(this.fadingFactorOption.getValue(), false, "NH");
 				
-				if (this.previous_drift_level == DRIFT_LEVEL.NORMAL && this.repository.size() > 1) {
+				if (response.clustered) {
 					this.candidate.resetLearning();
 					
-					// Do clustering
 					// Create ensemble_NH
-					this.initPredictionErrorStorage(this.instWindow.size());
-					for (ClassifierWithInfo classifier : this.repository) {
-						this.predictionErrorByClassifierFromRepo.add(classifier.makePredictionOnInstances(this.instWindow));
-					}
-						
-					try {
-						this.clusteringModels();
-						
-						int numOfClusters = this.clusterer.numberOfClusters();
+					if (!response.clusteringFailed) {
+						int numOfClusters = response.numOfClusters;
 						
 						if (numOfClusters > 1) {
 							
@@ -523,21 +1021,20 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 							}
 							
 						} else {
-							for (int i = 0; i < this.repository.size() && this.ensemble_NH.size() < this.poolSizeOption.getValue(); i += this.repositorySizeOption.getValue()) {
+							// Every n-th model, n being the repository size per pool slot, as the latency controller set it.
+							int stride = Math.max(1, this.maxRepositorySize / this.effectivePoolSize);
+							for (int i = 0; i < this.repository.size() && this.ensemble_NH.size() < this.effectivePoolSize; i += stride) {
 								this.ensemble_NH.add(this.repository.get(i));
 							}
 						}
-							
-					} catch (Exception e) {
-						e.printStackTrace();
+						
+						this.emitRecoveryEvent("NH", this.ensemble_NH.size());
 					}
-							
-					this.predictionErrorByClassifierFromRepo.delete();
-					this.resetClusterer();
 				}
 				
 				this.ensemble_NL = new EnsembleWithInfo(this.fadingFactorOption.getValue(), true, "NL");
 				this.ensemble_NL.add(candidate);
+				this.emitEnsembleChangeEvent("NL", "create from candidate", this.ensemble_NL.size());
 				
 				this.candidate = new ClassifierWithInfo(((Classifier) this.getPreparedClassOption(this.baseLearnerOption)).copy(),
 														this.fadingFactorOption.getValue());
@@ -549,10 +1046,20 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 				this.instWindow.clear();
 				this.instSeenAfterDrift = 0;
 				
-				this.previous_drift_level = DRIFT_LEVEL.OUTCONTROL;
-				
 				changeDetected++;
 				
+				if (driftEvent.shouldCommit()) {
+					driftEvent.driftNumber = (long) this.changeDetected;
+					driftEvent.instancesSincePreviousDrift = instancesSincePreviousDrift;
+					driftEvent.repositorySize = this.repository.size();
+					driftEvent.modelsAddedToRepository = this.repository.size() - repositorySizeBeforeDrift;
+					driftEvent.consecutiveDrift = this.previous_drift_level == DRIFT_LEVEL.OUTCONTROL;
+					driftEvent.commit();
+				}
+				
+				this.previous_drift_level = DRIFT_LEVEL.OUTCONTROL;
+				ensemblesChanged = true;
+				
 				break;
 			default:
 				System.out.print("ERROR!");
@@ -567,11 +1074,156 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 		}
 		this.ensemble_NL.updatePrequentialAccuracy(inst);
 		this.ensemble_NL.trainOnInstance(inst);
+		
+		if (this.concurrentInferenceOption.isSet()) {
+			if (ensemblesChanged || afterDrift || ++this.instancesSinceNLSnapshot >= this.inferenceRefreshIntervalOption.getValue()) {
+				this.publishInferenceSnapshot();
+			} else {
+				this.publishInferenceWeights();
+			}
+		}
+		
+		if (this.latencyController != null) {
+			this.latencyController.recordTraining(System.nanoTime() - start, ensemblesChanged);
+		}
+	}
+	
+	/*
+	 * Drops repository models, oldest first, until there are at most maxRepositorySize.
+	 * Like a model retired from NL, a leaving model takes the place of its most similar
+	 * remaining model if it has seen more training, and is discarded otherwise.
+	 */
+	private void shrinkRepository() {
+		if (this.repository.size() <= this.maxRepositorySize) {
+			return;
+		}
+		PairwiseContingencyEngine engine = new PairwiseContingencyEngine(this.instWindow);
+		while (this.repository.size() > this.maxRepositorySize) {
+			CDCMSEvents.RepositoryReplacement replacementEvent = new CDCMSEvents.RepositoryReplacement();
+			replacementEvent.begin();
+			
+			ClassifierWithInfo leaving = this.repository.remove(0);
+			int mostSimilarIndex = this.getMostSimilarAndNewFromRepo(leaving, this.repository, engine);
+			boolean replaced = false;
+			
+			if (mostSimilarIndex > -1 &&
+					leaving.getTrainingWeightSeenByModel() > this.repository.get(mostSimilarIndex).getTrainingWeightSeenByModel()) {
+				this.repository.remove(mostSimilarIndex);
+				this.repository.add(leaving);
+				replaced = true;
+			}
+			
+			if (replacementEvent.shouldCommit()) {
+				replacementEvent.trigger = "shrink";
+				replacementEvent.repositorySize = this.repository.size();
+				replacementEvent.mostSimilarIndex = mostSimilarIndex;
+				replacementEvent.candidateTrainingWeight = leaving.getTrainingWeightSeenByModel();
+				replacementEvent.replaced = replaced;
+				replacementEvent.commit();
+			}
+		}
+	}
+	
+	/*
+	 * Replaces the snapshot read by getVotesForInstance when concurrentInference is set.
+	 * NL models are still trained, so they are copied for prediction. OL and NH models are never trained
+	 * again, so they are shared and only their accuracies are copied.
+	 */
+	private void publishInferenceSnapshot() {
+		this.inferenceSnapshot = new InferenceSnapshot(this.drift_level,
+				this.ensemble_NL.snapshot(true),
+				this.ensemble_OL == null ? null : this.ensemble_OL.snapshot(false),
+				this.ensemble_NH == null ? null : this.ensemble_NH.snapshot(false));
+		this.instancesSinceNLSnapshot = 0;
+	}
+	
+	/*
+	 * Republishes the snapshot with the current drift level and accuracies, a few scalars per
+	 * model, keeping the NL model copies of the previous snapshot. Only valid while NL has the
+	 * same members as when they were copied: any change of members sets ensemblesChanged.
+	 */
+	private void publishInferenceWeights() {
+		InferenceSnapshot previous = this.inferenceSnapshot;
+		if (previous.ensemble_NL.size() != this.ensemble_NL.size()) {
+			this.publishInferenceSnapshot();
+			return;
+		}
+		this.inferenceSnapshot = new InferenceSnapshot(this.drift_level,
+				this.ensemble_NL.snapshot(previous.ensemble_NL),
+				this.ensemble_OL == null ? null : this.ensemble_OL.snapshot(false),
+				this.ensemble_NH == null ? null : this.ensemble_NH.snapshot(false));
+	}
+
+	/*
+	 * What happened while training on the last instance, as TRANSITION_* bits.
+	 */
+	public int getLastTransitions() {
+		return this.lastTransitions;
+	}
+	
+	/*
+	 * Sizes of NL, OL, NH and the repository. OL and NH are 0 before the first drift.
+	 */
+	public int[] getEnsembleAndRepositorySizes() {
+		return new int[] { this.ensemble_NL.size(),
+						   this.ensemble_OL == null ? 0 : this.ensemble_OL.size(),
+						   this.ensemble_NH == null ? 0 : this.ensemble_NH.size(),
+						   this.repository.size() };
+	}
+	
+	private void emitEnsembleChangeEvent(String ensemble, String action, int ensembleSize) {
+		CDCMSEvents.EnsembleChange event = new CDCMSEvents.EnsembleChange();
+		if (event.isEnabled()) {
+			event.ensemble = ensemble;
+			event.action = action;
+			event.ensembleSize = ensembleSize;
+			event.commit();
+		}
+	}
+	
+	private void emitRecoveryEvent(String ensemble, int modelsRecovered) {
+		CDCMSEvents.Recovery event = new CDCMSEvents.Recovery();
+		if (event.isEnabled()) {
+			event.ensemble = ensemble;
+			event.modelsRecovered = modelsRecovered;
+			event.repositorySize = this.repository.size();
+			event.commit();
+		}
 	}
 
 	@Override
 	protected Measurement[] getModelMeasurementsImpl() {
-		return null;
+		List<Measurement> measurements = new ArrayList<Measurement>();
+		measurements.add(new Measurement("skipped member evaluations", this.skippedMemberEvaluations.sum()));
+		for (int t = 0; t < this.shadowDiversityTests.length; ++t) {
+			measurements.add(new Measurement("shadow " + this.shadowDiversityTests[t].getClass().getSimpleName() + " agreement (percent)",
+					this.similaritySearches > 0 ? 100.0 * this.shadowAgreements[t] / this.similaritySearches : 0.0));
+		}
+		if (this.latencyController != null) {
+			measurements.add(new Measurement("effective ensemble size", this.latencyController.getPoolSize()));
+			measurements.add(new Measurement("effective repository size", this.latencyController.getRepositorySize()));
+			measurements.add(new Measurement("steady time per instance (us)", this.latencyController.getSteadyCostMicros()));
+			measurements.add(new Measurement("amortised drift and window time per instance (us)", this.latencyController.getEventCostMicros()));
+			measurements.add(new Measurement("size reductions", this.latencyController.getShrinks()));
+			measurements.add(new Measurement("size increases", this.latencyController.getGrowths()));
+		}
+		if (this.freezeRepositoryModelsOption.isSet()) {
+			measurements.add(new Measurement("frozen repository models", this.repository.stream().filter(ClassifierWithInfo::isFrozen).count()));
+			// The deflated full trees kept for thawing usually outweigh the prediction-only arrays.
+			long predictionBytes = 0L, learnerBytes = 0L;
+			for (ClassifierWithInfo model : this.repository) {
+				if (model.isLoaded() && model.isFrozen()) {
+					predictionBytes += ((CompactHoeffdingTree) model.getActualClassifier()).getPredictionStateBytes();
+					learnerBytes += ((CompactHoeffdingTree) model.getActualClassifier()).getLearnerStateBytes();
+				}
+			}
+			measurements.add(new Measurement("frozen prediction state (bytes)", predictionBytes));
+			measurements.add(new Measurement("frozen learner state kept for thawing (bytes)", learnerBytes));
+		}
+		if (this.conceptLibraryOption.getFile() != null) {
+			measurements.add(new Measurement("library models not loaded", this.repository.stream().filter(m -> !m.isLoaded()).count()));
+		}
+		return measurements.toArray(new Measurement[measurements.size()]);
 	}
 
 	@Override
@@ -648,6 +1300,32 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 			return new EnsembleWithInfo(this);
 		}
 		
+		/*
+		 * Copy that shares nothing mutable with this ensemble. Member classifiers are
+		 * copied for prediction only if copyClassifiers is set.
+		 */
+		protected EnsembleWithInfo snapshot(boolean copyClassifiers) {
+			EnsembleWithInfo snapshot = new EnsembleWithInfo(this.alpha, this.isWMEnsemble, this.name);
+			for (ClassifierWithInfo member : this.ensemble) {
+				snapshot.ensemble.add(copyClassifiers ? member.predictionCopy() : new ClassifierWithInfo(member, false));
+			}
+			snapshot.estimation = this.estimation;
+			snapshot.b = this.b;
+			return snapshot;
+		}
+		
+		/*
+		 * snapshot(false), but with the member classifiers of an earlier snapshot of this
+		 * ensemble, so that only the accuracies are new.
+		 */
+		protected EnsembleWithInfo snapshot(EnsembleWithInfo classifiersFrom) {
+			EnsembleWithInfo snapshot = this.snapshot(false);
+			for (int i = 0; i < snapshot.ensemble.size(); ++i) {
+				snapshot.ensemble.get(i).classifier = classifiersFrom.ensemble.get(i).classifier;
+			}
+			return snapshot;
+		}
+		
 		protected int size() {
 			return this.ensemble.size();
 		}
@@ -667,6 +1345,13 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 			this.ensemble.add(toAdd.copy());
 		}
 		
+		/*
+		 * As add(), for a model that will be trained: a frozen model is thawed.
+		 */
+		protected void addTrainable(ClassifierWithInfo toAdd) {
+			this.ensemble.add(toAdd.trainableCopy());
+		}
+		
 		protected ClassifierWithInfo removeWorst() {
 			ClassifierWithInfo worst = this.ensemble
 										   .stream()
@@ -684,6 +1369,17 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 									 .mapToDouble(ClassifierWithInfo::getPrequentialAccuracy)
 									 .sum();
 			
+			if (flatVoteAggregationOption.isSet()) {
+				VoteAggregator aggregator = new VoteAggregator(inst.numClasses());
+				for (int i = 0; i < ensemble.size(); ++i) {
+					if (ensemble.get(i).estimation > 0.0) {
+						aggregator.add(ensemble.get(i).getVotesForInstance(inst),
+									   isWMEnsemble ? ensemble.get(i).getPrequentialAccuracy() / accuracySum : 1.0);
+					}
+				}
+				return aggregator.aggregate();
+			}
+			
 			DoubleVector combinedVote = new DoubleVector();
 			for (int i = 0; i < ensemble.size(); ++i) {
 				if (ensemble.get(i).estimation > 0.0) {
@@ -703,9 +1399,70 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 			
 		}
 		
+		/*
+		 * Votes whose argmax is the same as getVotesForInstance's, for callers that only need
+		 * the predicted class. With earlyExitVoting on a WM ensemble, members are queried in
+		 * descending weight order until the leading class cannot be overtaken by the weight
+		 * still unseen, so the returned votes are partial.
+		 */
+		protected double[] getDecisiveVotesForInstance(Instance inst) {
+			
+			if (!earlyExitVotingOption.isSet() || !this.isWMEnsemble) {
+				return this.getVotesForInstance(inst);
+			}
+			
+			List<ClassifierWithInfo> voters = new ArrayList<ClassifierWithInfo>(this.ensemble.size());
+			double accuracySum = 0.0;
+			for (ClassifierWithInfo member : this.ensemble) {
+				accuracySum += member.getPrequentialAccuracy();
+				if (member.estimation > 0.0) {
+					voters.add(member);
+				}
+			}
+			voters.sort(Comparator.comparingDouble(ClassifierWithInfo::getPrequentialAccuracy).reversed());
+			
+			double remainingWeight = 0.0;
+			for (ClassifierWithInfo member : voters) {
+				remainingWeight += member.getPrequentialAccuracy() / accuracySum;
+			}
+			
+			DoubleVector combinedVote = new DoubleVector();
+			for (int i = 0; i < voters.size(); ++i) {
+				double weight = voters.get(i).getPrequentialAccuracy() / accuracySum;
+				remainingWeight -= weight;
+				
+				DoubleVector vote = new DoubleVector(voters.get(i).getVotesForInstance(inst));
+				if (vote.sumOfValues() > 0.0) {
+					vote.normalize();
+					vote.scaleValues(weight);
+					combinedVote.addValues(vote);
+				}
+				
+				if (i < voters.size() - 1 && getVoteMargin(combinedVote.getArrayRef()) > remainingWeight) {
+					skippedMemberEvaluations.add(voters.size() - 1 - i);
+					break;
+				}
+			}
+			
+			return combinedVote.getArrayRef();
+		}
+		
+		private double getVoteMargin(double[] votes) {
+			double first = 0.0, second = 0.0;
+			for (double vote : votes) {
+				if (vote > first) {
+					second = first;
+					first = vote;
+				} else if (vote > second) {
+					second = vote;
+				}
+			}
+			return first - second;
+		}
+		
 		protected void updatePrequentialAccuracy(Instance inst) {
 			this.estimation = this.alpha * this.estimation +
-							(Utils.maxIndex(this.getVotesForInstance(inst)) == (int) inst.classValue() ? 1.0 : 0.0);
+							(Utils.maxIndex(this.getDecisiveVotesForInstance(inst)) == (int) inst.classValue() ? 1.0 : 0.0);
 			
 			this.b = this.alpha * this.b + 1.0;
 
@@ -762,7 +1519,8 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 	
 	protected class ClassifierWithInfo extends AbstractClassifier {
 		
-		private Classifier classifier;
+		private volatile Classifier classifier;
+		private ConceptLibrary.Entry libraryEntry;
 		private int clusterLabel;
 		
 		private double alpha;
@@ -777,11 +1535,28 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 			
 		}
 		
+		/*
+		 * Model imported from a concept library, loaded when first used.
+		 */
+		protected ClassifierWithInfo(ConceptLibrary.Entry libraryEntry, double prequentialAccFadingFactor) {
+			this.libraryEntry = libraryEntry;
+			this.clusterLabel = libraryEntry.clusterLabel;
+			this.alpha = prequentialAccFadingFactor;
+		}
+		
 		/*
 		 * Copy Constructor
 		 */
 		protected ClassifierWithInfo(ClassifierWithInfo source) {
-			this.classifier = source.classifier.copy();
+			this(source, true);
+		}
+		
+		protected ClassifierWithInfo(ClassifierWithInfo source, boolean copyClassifier) {
+			// A frozen classifier is never modified, so copies can share it. A copy of a model
+			// not loaded yet loads its own.
+			Classifier sourceClassifier = source.classifier;
+			this.libraryEntry = source.libraryEntry;
+			this.classifier = sourceClassifier != null && copyClassifier && !source.isFrozen() ? sourceClassifier.copy() : sourceClassifier;
 			this.clusterLabel = source.clusterLabel;
 			
 			this.alpha = source.alpha;
@@ -793,12 +1568,80 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 			return new ClassifierWithInfo(this);
 		}
 		
+		/*
+		 * Copy that is only used to predict. A HoeffdingTree is compiled without its learner
+		 * state, which is much cheaper than copying it and predicts the same.
+		 */
+		protected ClassifierWithInfo predictionCopy() {
+			Classifier classifier = this.classifier;
+			if (!(classifier instanceof HoeffdingTree)) {
+				return this.copy();
+			}
+			ClassifierWithInfo copy = new ClassifierWithInfo(this, false);
+			CompactHoeffdingTree compact = CompactHoeffdingTree.compilePredictor((HoeffdingTree) classifier);
+			copy.classifier = compact != null ? compact : classifier.copy();
+			return copy;
+		}
+		
+		/*
+		 * Replaces the classifier by its compact prediction-only form, if freezeRepositoryModels
+		 * is set and the base learner can be compiled. Only for models that are no longer trained.
+		 */
+		protected void freeze() {
+			if (freezeRepositoryModelsOption.isSet() && this.classifier instanceof HoeffdingTree) {
+				CompactHoeffdingTree compact = CompactHoeffdingTree.compile((HoeffdingTree) this.classifier);
+				if (compact != null) {
+					this.classifier = compact;
+				}
+			}
+		}
+		
+		protected boolean isFrozen() {
+			Classifier classifier = this.classifier;
+			return classifier == null ? this.libraryEntry.frozen : classifier instanceof CompactHoeffdingTree;
+		}
+		
+		protected boolean isLoaded() {
+			return this.classifier != null;
+		}
+		
+		/*
+		 * The classifier, loaded from the concept library on first use. Members may be
+		 * queried from parallel streams, so only one thread loads it.
+		 */
+		private Classifier classifier() {
+			Classifier classifier = this.classifier;
+			if (classifier == null) {
+				synchronized (this) {
+					if (this.classifier == null) {
+						this.classifier = this.libraryEntry.load();
+						this.freeze();
+					}
+					classifier = this.classifier;
+				}
+			}
+			return classifier;
+		}
+		
+		/*
+		 * Copy whose classifier can be trained. A frozen classifier is thawed into a new full learner.
+		 */
+		protected ClassifierWithInfo trainableCopy() {
+			if (!this.isFrozen()) {
+				return this.copy();
+			}
+			ClassifierWithInfo copy = new ClassifierWithInfo(this, false);
+			copy.classifier = ((CompactHoeffdingTree) this.classifier()).thaw();
+			return copy;
+		}
+		
 		protected double getTrainingWeightSeenByModel() {
-			return this.classifier.trainingWeightSeenByModel();
+			Classifier classifier = this.classifier;
+			return classifier == null ? this.libraryEntry.trainingWeight : classifier.trainingWeightSeenByModel();
 		}
 		
 		protected Classifier getActualClassifier() {
-			return this.classifier;
+			return this.classifier();
 		}
 		
 		protected void setClusterLabel(int label) {
@@ -810,25 +1653,26 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 		}
 		
 		public double[] getVotesForInstance(Instance inst) {
-			return this.classifier.getVotesForInstance(inst);
+			return this.classifier().getVotesForInstance(inst);
 		}		
 
 		protected Instance makePredictionOnInstances(List<Instance> instances) {
 			
 			Instance predictions4Clustering = new DenseInstance(instances.size() + 1);
+			Classifier classifier = this.classifier();
 			
 			predictions4Clustering.setDataset(predictionErrorByClassifierFromRepo);
 
 			instances.parallelStream()
 					 .forEach(inst -> predictions4Clustering.setValue(instances.indexOf(inst),
-														this.classifier.correctlyClassifies(inst) ? 1.0 : 0.0));			
+														classifier.correctlyClassifies(inst) ? 1.0 : 0.0));			
 			predictions4Clustering.setMissing(predictions4Clustering.classIndex());
 			
 			return predictions4Clustering;
 		}
 		
 		protected void updatePrequentialAccuracy(Instance inst) {
-			this.estimation = this.alpha * this.estimation + (this.classifier.correctlyClassifies(inst) ? 1.0 : 0.0);
+			this.estimation = this.alpha * this.estimation + (this.classifier().correctlyClassifies(inst) ? 1.0 : 0.0);
 			this.b = this.alpha * this.b + 1.0;
 		}
 		
@@ -848,7 +1692,7 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 
 		@Override
 		public void resetLearningImpl() {
-			this.classifier.resetLearning();
+			this.classifier().resetLearning();
 			this.clusterLabel = -1;
 			
 			this.resetPrequentialAccuracy();
@@ -856,7 +1700,7 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 
 		@Override
 		public void trainOnInstanceImpl(Instance inst) {
-			this.classifier.trainOnInstance(inst);
+			this.classifier().trainOnInstance(inst);
 		}
 
 		@Override
@@ -873,6 +1717,44 @@ public class CDCMS extends AbstractClassifier implements MultiClassClassifier {
 	
 	}
 	
+	/*
+	 * Result of computeDriftResponse. The repository after the drift is keptRepository plus
+	 * copies of the NL models flagged in isAdd. Cluster labels are written to the models
+	 * themselves, so the NL copies made on commit carry theirs.
+	 */
+	protected class DriftResponse {
+		
+		private List<ClassifierWithInfo> keptRepository;
+		private boolean[] isAdd;
+		
+		private boolean clustered;
+		private boolean clusteringFailed;
+		private int numOfClusters;
+		
+	}
+	
+	/*
+	 * What getVotesForInstance reads when concurrentInference is set. It is never modified
+	 * after publication, so readers need no locking.
+	 */
+	protected class InferenceSnapshot {
+		
+		private final DRIFT_LEVEL drift_level;
+		
+		private final EnsembleWithInfo ensemble_NL;
+		private final EnsembleWithInfo ensemble_OL;
+		private final EnsembleWithInfo ensemble_NH;
+		
+		protected InferenceSnapshot(DRIFT_LEVEL drift_level, EnsembleWithInfo ensemble_NL,
+				EnsembleWithInfo ensemble_OL, EnsembleWithInfo ensemble_NH) {
+			this.drift_level = drift_level;
+			this.ensemble_NL = ensemble_NL;
+			this.ensemble_OL = ensemble_OL;
+			this.ensemble_NH = ensemble_NH;
+		}
+		
+	}
+	
 	protected enum DRIFT_LEVEL {
 		NORMAL, WARNING, OUTCONTROL
 	}
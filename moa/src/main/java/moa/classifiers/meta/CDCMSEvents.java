@@ -0,0 +1,140 @@
+/*
+ *    CDCMSEvents.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events emitted by CDCMS, so that drift handling can be
+ * lined up with GC and CPU activity in a recording.
+ *
+ * Callers create an event, check isEnabled() before gathering any field values
+ * and commit it. When JFR is not recording, isEnabled() is false and the
+ * allocation is removed by escape analysis, so the events can stay compiled in.
+ */
+final class CDCMSEvents {
+
+	private CDCMSEvents() {
+	}
+
+	@Name("moa.cdcms.DriftHandled")
+	@Label("CDCMS Drift Handled")
+	@Category({ "MOA", "CDCMS" })
+	@Description("Handling of a drift detected by the drift detector (OUTCONTROL), from detection until the new ensembles are set up.")
+	@StackTrace(false)
+	static final class DriftHandled extends Event {
+
+		@Label("Drift Number")
+		long driftNumber;
+
+		@Label("Instances Since Previous Drift")
+		int instancesSincePreviousDrift;
+
+		@Label("Repository Size")
+		int repositorySize;
+
+		@Label("Models Added To Repository")
+		int modelsAddedToRepository;
+
+		@Label("Consecutive Drift")
+		@Description("The previous instance was also handled as a drift, so clustering was skipped.")
+		boolean consecutiveDrift;
+	}
+
+	@Name("moa.cdcms.RepositoryReplacement")
+	@Label("CDCMS Repository Replacement")
+	@Category({ "MOA", "CDCMS" })
+	@Description("Decision on whether a model leaving NL, or a repository being shrunk, replaces the most similar model of a full repository.")
+	@StackTrace(false)
+	static final class RepositoryReplacement extends Event {
+
+		@Label("Trigger")
+		@Description("window (worst NL model retired), drift (NL saved at OUTCONTROL) or shrink (repository size lowered by the latency controller).")
+		String trigger;
+
+		@Label("Repository Size")
+		int repositorySize;
+
+		@Label("Most Similar Index")
+		@Description("-1 if no repository model passes the similarity threshold.")
+		int mostSimilarIndex;
+
+		@Label("Candidate Training Weight")
+		double candidateTrainingWeight;
+
+		@Label("Replaced")
+		boolean replaced;
+	}
+
+	@Name("moa.cdcms.Clustering")
+	@Label("CDCMS Clustering")
+	@Category({ "MOA", "CDCMS" })
+	@Description("Clustering of models in the model space.")
+	@StackTrace(false)
+	static final class Clustering extends Event {
+
+		@Label("Models Clustered")
+		int modelsClustered;
+
+		@Label("Dimensions")
+		int dimensions;
+
+		@Label("Clusters Found")
+		int clustersFound;
+	}
+
+	@Name("moa.cdcms.Recovery")
+	@Label("CDCMS Recovery")
+	@Category({ "MOA", "CDCMS" })
+	@Description("Models recovered from the repository into NH (at a drift) or NL (one window after a drift).")
+	@StackTrace(false)
+	static final class Recovery extends Event {
+
+		@Label("Ensemble")
+		String ensemble;
+
+		@Label("Models Recovered")
+		int modelsRecovered;
+
+		@Label("Repository Size")
+		int repositorySize;
+	}
+
+	@Name("moa.cdcms.EnsembleChange")
+	@Label("CDCMS Ensemble Change")
+	@Category({ "MOA", "CDCMS" })
+	@Description("A model retired from or added to an ensemble, or an ensemble retired or created.")
+	@StackTrace(false)
+	static final class EnsembleChange extends Event {
+
+		@Label("Ensemble")
+		String ensemble;
+
+		@Label("Action")
+		String action;
+
+		@Label("Ensemble Size")
+		int ensembleSize;
+	}
+}
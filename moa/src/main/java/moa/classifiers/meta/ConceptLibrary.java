@@ -0,0 +1,254 @@
+/*
+ *    ConceptLibrary.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.yahoo.labs.samoa.instances.Attribute;
+import com.yahoo.labs.samoa.instances.Instances;
+
+import moa.classifiers.Classifier;
+import moa.classifiers.trees.CompactHoeffdingTree;
+
+/**
+ * Repository models of a CDCMS, saved to a file so that another CDCMS, on a
+ * stream with the same schema, can start with them in its repository.
+ *
+ * Opening a library only reads its index: the schema, and per model its
+ * training weight, cluster label and correctness profile. A model itself is
+ * only deserialised by {@link Entry#load()}, the first time CDCMS predicts
+ * with it. That is deferral, not avoidance: the first drift clusters the
+ * whole repository, so every imported model is read by then at the latest,
+ * and a library that fills the repository is read at the first window
+ * boundary, when a retired NL model is compared with the repository.
+ *
+ * The correctness profile of a model is whether it classified each instance
+ * of the exporting CDCMS's last window correctly. All profiles of a library
+ * are over the same window, so models can be compared with a DiversityTest
+ * without loading them.
+ *
+ * Layout (big-endian, uncompressed so that models can be read in place):
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * byte[] each model, serialised and deflated
+ * index:
+ *   int    length of the schema, followed by its UTF-8 text
+ *   int    number of models, then per model:
+ *     long    offset of the model
+ *     int     length of the model
+ *     double  training weight seen by the model
+ *     int     cluster label
+ *     boolean whether the model is frozen
+ *     int     profile length, then one byte per 8 instances, first instance in the lowest bit
+ * long   offset of the index
+ * </pre>
+ */
+final class ConceptLibrary {
+
+	static final int MAGIC = 0x4D4F414C; // "MOAL"
+
+	static final int VERSION = 2;
+
+	final String schema;
+
+	final List<Entry> entries;
+
+	private ConceptLibrary(String schema, List<Entry> entries) {
+		this.schema = schema;
+		this.entries = entries;
+	}
+
+	/*
+	 * Reads the index only.
+	 */
+	static ConceptLibrary open(File file) throws IOException {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a version " + VERSION + " concept library file.");
+			}
+			in.seek(in.length() - Long.BYTES);
+			in.seek(in.readLong());
+
+			byte[] schema = new byte[in.readInt()];
+			in.readFully(schema);
+			int numEntries = in.readInt();
+			List<Entry> entries = new ArrayList<Entry>(numEntries);
+			for (int i = 0; i < numEntries; ++i) {
+				long offset = in.readLong();
+				int length = in.readInt();
+				double trainingWeight = in.readDouble();
+				int clusterLabel = in.readInt();
+				boolean frozen = in.readBoolean();
+				boolean[] profile = new boolean[in.readInt()];
+				byte[] packed = new byte[(profile.length + 7) / 8];
+				in.readFully(packed);
+				for (int j = 0; j < profile.length; ++j) {
+					profile[j] = (packed[j >> 3] & (1 << (j & 7))) != 0;
+				}
+				entries.add(new Entry(file, offset, length, trainingWeight, clusterLabel, frozen, profile));
+			}
+			return new ConceptLibrary(new String(schema, StandardCharsets.UTF_8), Collections.unmodifiableList(entries));
+		}
+	}
+
+	/*
+	 * Attribute names and types, nominal values in order, and the class index: what a
+	 * model needs to be unchanged to be used on another stream. The relation name is not part of it.
+	 */
+	static String schemaOf(Instances header) {
+		StringBuilder schema = new StringBuilder();
+		schema.append(header.classIndex());
+		for (int i = 0; i < header.numAttributes(); ++i) {
+			Attribute attribute = header.attribute(i);
+			schema.append('\n').append(attribute.name());
+			if (attribute.isNominal()) {
+				schema.append(" {");
+				for (int v = 0; v < attribute.numValues(); ++v) {
+					schema.append(v > 0 ? "," : "").append(attribute.value(v));
+				}
+				schema.append('}');
+			} else {
+				schema.append(" numeric");
+			}
+		}
+		return schema.toString();
+	}
+
+	static class Entry implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File file;
+		private final long offset;
+		private final int length;
+
+		final double trainingWeight;
+		final int clusterLabel;
+		final boolean frozen;
+		final boolean[] profile;
+
+		private Entry(File file, long offset, int length, double trainingWeight, int clusterLabel, boolean frozen, boolean[] profile) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			this.trainingWeight = trainingWeight;
+			this.clusterLabel = clusterLabel;
+			this.frozen = frozen;
+			this.profile = profile;
+		}
+
+		/*
+		 * A new instance of the model on every call, so callers may train it.
+		 */
+		Classifier load() {
+			byte[] bytes = new byte[this.length];
+			try {
+				try (RandomAccessFile in = new RandomAccessFile(this.file, "r")) {
+					in.seek(this.offset);
+					in.readFully(bytes);
+				}
+				try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+						new InflaterInputStream(new ByteArrayInputStream(bytes))))) {
+					return (Classifier) in.readObject();
+				}
+			} catch (IOException | ClassNotFoundException e) {
+				throw new IllegalStateException("Problem loading a model from concept library " + this.file, e);
+			}
+		}
+	}
+
+	static class Writer implements Closeable {
+
+		private final File file;
+
+		private final RandomAccessFile out;
+
+		private final String schema;
+
+		private final List<Entry> written = new ArrayList<Entry>();
+
+		Writer(File file, Instances header) throws IOException {
+			this.file = file;
+			this.out = new RandomAccessFile(file, "rw");
+			this.out.setLength(0);
+			this.schema = schemaOf(header);
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+		}
+
+		void add(Classifier classifier, int clusterLabel, boolean[] profile) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream objects = new ObjectOutputStream(new DeflaterOutputStream(bytes))) {
+				objects.writeObject(classifier);
+			}
+			this.written.add(new Entry(this.file, this.out.getFilePointer(), bytes.size(), classifier.trainingWeightSeenByModel(),
+									   clusterLabel, classifier instanceof CompactHoeffdingTree, profile));
+			this.out.write(bytes.toByteArray());
+		}
+
+		/*
+		 * Writes the index, which is what makes the file a library.
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				long indexOffset = this.out.getFilePointer();
+				// Not writeUTF, which is limited to 64 KB; wide nominal schemas exceed it.
+				byte[] schema = this.schema.getBytes(StandardCharsets.UTF_8);
+				this.out.writeInt(schema.length);
+				this.out.write(schema);
+				this.out.writeInt(this.written.size());
+				for (Entry entry : this.written) {
+					this.out.writeLong(entry.offset);
+					this.out.writeInt(entry.length);
+					this.out.writeDouble(entry.trainingWeight);
+					this.out.writeInt(entry.clusterLabel);
+					this.out.writeBoolean(entry.frozen);
+					byte[] packed = new byte[(entry.profile.length + 7) / 8];
+					for (int j = 0; j < entry.profile.length; ++j) {
+						if (entry.profile[j]) {
+							packed[j >> 3] |= 1 << (j & 7);
+						}
+					}
+					this.out.writeInt(entry.profile.length);
+					this.out.write(packed);
+				}
+				this.out.writeLong(indexOffset);
+			} finally {
+				this.out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ *    LatencyController.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chooses the ensemble size and repository size multiple CDCMS runs with, so
+ * that the mean time spent per instance stays under a latency target. The
+ * configured sizes are the upper bounds.
+ *
+ * The time of an instance is split into a steady part and an event part. The
+ * steady part is the prediction plus training of an instance that changes no
+ * ensemble, and grows with the number of NL members. The event part covers
+ * drift handling and window boundaries, which are dominated by similarity
+ * searches and clustering over the repository. It is amortised over all the
+ * instances since the last adjustment.
+ *
+ * Once per window, adjust() compares the smoothed sum against the target and
+ * moves one of the two sizes by one step. When over the target, it shrinks the
+ * repository if the event part alone exceeds the overshoot, and otherwise the
+ * ensemble. When under the target with some slack, it grows the ensemble, or
+ * else the repository, if the projected time still leaves that slack.
+ */
+class LatencyController implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// Growing is only considered below this fraction of the target, to avoid oscillating.
+	private static final double GROWTH_SLACK = 0.8;
+
+	// Weight of the latest window in the smoothed costs.
+	private static final double SMOOTHING = 0.5;
+
+	private final double targetNanos;
+	private final int maxPoolSize;
+	private final int maxRepositoryMultiple;
+
+	private int poolSize;
+	private int repositoryMultiple;
+
+	// Since the last adjustment. Predictions may be timed on other threads.
+	private final LongAdder predictionNanos = new LongAdder();
+	private final LongAdder predictions = new LongAdder();
+	private long steadyTrainingNanos;
+	private long steadyInstances;
+	private long eventNanos;
+	private long instances;
+
+	private double steadyCost = -1.0;
+	private double eventCost = -1.0;
+
+	private long shrinks;
+	private long growths;
+
+	LatencyController(double targetMicros, int maxPoolSize, int maxRepositoryMultiple) {
+		this.targetNanos = targetMicros * 1000.0;
+		this.maxPoolSize = maxPoolSize;
+		this.maxRepositoryMultiple = maxRepositoryMultiple;
+		this.poolSize = maxPoolSize;
+		this.repositoryMultiple = maxRepositoryMultiple;
+	}
+
+	void recordPrediction(long nanos) {
+		this.predictionNanos.add(nanos);
+		this.predictions.increment();
+	}
+
+	/*
+	 * event is set for instances whose training handled a drift or a window boundary.
+	 */
+	void recordTraining(long nanos, boolean event) {
+		if (event) {
+			this.eventNanos += nanos;
+		} else {
+			this.steadyTrainingNanos += nanos;
+			this.steadyInstances++;
+		}
+		this.instances++;
+	}
+
+	/*
+	 * nlSize and repositorySize are the current sizes, so that growth is only considered
+	 * once the current limits are actually reached and their cost has been observed.
+	 */
+	void adjust(int nlSize, int repositorySize) {
+		if (this.steadyInstances == 0) {
+			return;
+		}
+		long predictionCount = this.predictions.sumThenReset();
+		double steady = (double) this.steadyTrainingNanos / this.steadyInstances
+				+ (predictionCount > 0 ? (double) this.predictionNanos.sumThenReset() / predictionCount : 0.0);
+		double event = (double) this.eventNanos / this.instances;
+		this.steadyCost = this.steadyCost < 0.0 ? steady : SMOOTHING * steady + (1.0 - SMOOTHING) * this.steadyCost;
+		this.eventCost = this.eventCost < 0.0 ? event : SMOOTHING * event + (1.0 - SMOOTHING) * this.eventCost;
+		this.steadyTrainingNanos = 0;
+		this.steadyInstances = 0;
+		this.eventNanos = 0;
+		this.instances = 0;
+
+		double total = this.steadyCost + this.eventCost;
+		if (total > this.targetNanos) {
+			boolean eventsOverBudget = this.eventCost >= total - this.targetNanos;
+			if (this.repositoryMultiple > 1 && (eventsOverBudget || this.poolSize == 1)) {
+				this.repositoryMultiple--;
+				this.shrinks++;
+			} else if (this.poolSize > 1) {
+				this.poolSize--;
+				this.shrinks++;
+			}
+		} else if (total < this.targetNanos * GROWTH_SLACK) {
+			double perMember = this.steadyCost / Math.max(nlSize, 1);
+			double perRepositoryStep = this.eventCost / this.repositoryMultiple;
+			if (this.poolSize < this.maxPoolSize && nlSize >= this.poolSize
+					&& total + perMember <= this.targetNanos * GROWTH_SLACK) {
+				this.poolSize++;
+				this.growths++;
+			} else if (this.repositoryMultiple < this.maxRepositoryMultiple && repositorySize >= this.getRepositorySize()
+					&& total + perRepositoryStep <= this.targetNanos * GROWTH_SLACK) {
+				this.repositoryMultiple++;
+				this.growths++;
+			}
+		}
+	}
+
+	int getPoolSize() {
+		return this.poolSize;
+	}
+
+	int getRepositoryMultiple() {
+		return this.repositoryMultiple;
+	}
+
+	int getRepositorySize() {
+		return this.poolSize * this.repositoryMultiple;
+	}
+
+	double getSteadyCostMicros() {
+		return Math.max(this.steadyCost, 0.0) / 1000.0;
+	}
+
+	double getEventCostMicros() {
+		return Math.max(this.eventCost, 0.0) / 1000.0;
+	}
+
+	long getShrinks() {
+		return this.shrinks;
+	}
+
+	long getGrowths() {
+		return this.growths;
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ *    ModelSpaceReducer.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+import java.util.Random;
+
+import com.yahoo.labs.samoa.instances.Attribute;
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+
+/**
+ * Reduces the model-space vectors (one 0/1 correctness value per window
+ * position) to a fixed number of dimensions before they are clustered.
+ *
+ * For 0/1 vectors the squared Euclidean distance between two models is the
+ * number of window positions on which exactly one of them is correct. The
+ * k-means cost of any partition is a sum of such pairwise distances, so a
+ * reduction that keeps all pairwise distances within a factor keeps the cost
+ * of every partition within the same factor. With m models, W window
+ * positions, t target dimensions and probability at least 1 - delta:
+ * <ul>
+ * <li>RANDOM_PROJECTION (Achlioptas +-1/sqrt(t) matrix): every pairwise
+ * distance is within (1 +- eps) of the full one when
+ * t >= (4 + 2 ln(1/delta) / ln m) ln m / (eps^2/2 - eps^3/3). The partition
+ * clustered in the reduced space then costs at most (1 + eps) / (1 - eps)
+ * times the best full-dimensional partition.</li>
+ * <li>STRATIFIED_SUBSAMPLE (one random position per stratum of W/t positions):
+ * rescaled by W/t, every pairwise distance is within
+ * W * sqrt(ln(m^2/delta) / (2t)) of the full one (Hoeffding, union bound over
+ * pairs), so partition costs move by at most that amount per pair involved.</li>
+ * </ul>
+ * These bound the clustering objective, not the labels themselves: models
+ * whose distances to two clusters differ by less than the distortion may be
+ * assigned differently. EM with diagonal covariances is not exactly k-means,
+ * so the bound is a guide for it rather than a guarantee.
+ */
+class ModelSpaceReducer implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Method {
+		NONE, RANDOM_PROJECTION, STRATIFIED_SUBSAMPLE
+	}
+
+	private final Method method;
+	private final int targetDimensions;
+	private final long seed;
+
+	// Cached for the last window length seen; the window is full most of the time.
+	private transient int cachedInputDimensions = -1;
+	private transient boolean[][] projectionSigns;
+	private transient int[] sampledPositions;
+
+	ModelSpaceReducer(Method method, int targetDimensions, long seed) {
+		this.method = method;
+		this.targetDimensions = targetDimensions;
+		this.seed = seed;
+	}
+
+	boolean reduces(int inputDimensions) {
+		return this.method != Method.NONE && inputDimensions > this.targetDimensions;
+	}
+
+	/*
+	 * Returns a copy of the rows of modelSpace with the last attribute kept as the
+	 * (missing) class and the others reduced. Row i of the result is model i.
+	 */
+	Instances reduce(Instances modelSpace) {
+		int inputDimensions = modelSpace.numAttributes() - 1;
+		this.prepare(inputDimensions);
+
+		Attribute[] attributes = new Attribute[this.targetDimensions + 1];
+		for (int i = 0; i < attributes.length - 1; ++i) {
+			attributes[i] = new Attribute("Reduced " + (i + 1));
+		}
+		attributes[attributes.length - 1] = new Attribute("Cluster Number");
+		Instances reduced = new Instances("reducedPredictionErrorByClassifierFromRepo", attributes, modelSpace.numInstances());
+		reduced.setClassIndex(reduced.numAttributes() - 1);
+
+		for (int r = 0; r < modelSpace.numInstances(); ++r) {
+			Instance row = modelSpace.instance(r);
+			double[] values = new double[this.targetDimensions + 1];
+			if (this.method == Method.RANDOM_PROJECTION) {
+				double scale = 1.0 / Math.sqrt(this.targetDimensions);
+				for (int j = 0; j < inputDimensions; ++j) {
+					if (row.value(j) != 0.0) {
+						boolean[] signs = this.projectionSigns[j];
+						for (int k = 0; k < this.targetDimensions; ++k) {
+							values[k] += signs[k] ? scale : -scale;
+						}
+					}
+				}
+			} else {
+				for (int k = 0; k < this.targetDimensions; ++k) {
+					values[k] = row.value(this.sampledPositions[k]);
+				}
+			}
+			Instance reducedRow = new DenseInstance(1.0, values);
+			reducedRow.setDataset(reduced);
+			reducedRow.setMissing(reduced.classIndex());
+			reduced.add(reducedRow);
+		}
+		return reduced;
+	}
+
+	private void prepare(int inputDimensions) {
+		if (inputDimensions == this.cachedInputDimensions) {
+			return;
+		}
+		Random random = new Random(this.seed);
+		if (this.method == Method.RANDOM_PROJECTION) {
+			this.projectionSigns = new boolean[inputDimensions][this.targetDimensions];
+			for (boolean[] signs : this.projectionSigns) {
+				for (int k = 0; k < signs.length; ++k) {
+					signs[k] = random.nextBoolean();
+				}
+			}
+		} else {
+			this.sampledPositions = new int[this.targetDimensions];
+			for (int k = 0; k < this.targetDimensions; ++k) {
+				int from = (int) ((long) k * inputDimensions / this.targetDimensions);
+				int to = (int) ((long) (k + 1) * inputDimensions / this.targetDimensions);
+				this.sampledPositions[k] = from + random.nextInt(to - from);
+			}
+		}
+		this.cachedInputDimensions = inputDimensions;
+	}
+}
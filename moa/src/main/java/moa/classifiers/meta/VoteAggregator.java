@@ -0,0 +1,74 @@
+/*
+ *    VoteAggregator.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import java.util.Arrays;
+
+/**
+ * Weighted sum of normalised votes, accumulated in place into one array
+ * instead of through one DoubleVector per voter.
+ *
+ * The arithmetic is the same as DoubleVector normalize(), scaleValues() and
+ * addValues() applied per vote, in the same order, so the result is
+ * bit-for-bit identical. Each vote is read where the voter returned it: two
+ * counted loops over its doubles, one for the sums and one adding it to the
+ * result, which the JIT can compile to SIMD instructions.
+ */
+final class VoteAggregator {
+
+	private double[] combined;
+	private int combinedLength;
+
+	VoteAggregator(int numClasses) {
+		this.combined = new double[Math.max(numClasses, 1)];
+		this.combinedLength = 0;
+	}
+
+	/*
+	 * Adds a vote, normalised and multiplied by weight. Use a weight of 1.0 for unweighted
+	 * votes; multiplying by 1.0 is exact. Votes whose values sum to zero or less are skipped,
+	 * as in the DoubleVector loops.
+	 */
+	void add(double[] vote, double weight) {
+		double sum = 0.0;
+		double sumOfAbsolute = 0.0;
+		for (int c = 0; c < vote.length; ++c) {
+			double v = vote[c];
+			sum += v;
+			sumOfAbsolute += (v > 0.0) ? v : -v;
+		}
+		if (sum > 0.0) {
+			if (vote.length > this.combined.length) {
+				this.combined = Arrays.copyOf(this.combined, vote.length);
+			}
+			double normaliser = 1.0 / sumOfAbsolute;
+			for (int c = 0; c < vote.length; ++c) {
+				this.combined[c] += (vote[c] * normaliser) * weight;
+			}
+			this.combinedLength = Math.max(this.combinedLength, vote.length);
+		}
+	}
+
+	/*
+	 * The result is as long as the longest vote that was added to it.
+	 */
+	double[] aggregate() {
+		return this.combinedLength == this.combined.length ? this.combined : Arrays.copyOf(this.combined, this.combinedLength);
+	}
+}
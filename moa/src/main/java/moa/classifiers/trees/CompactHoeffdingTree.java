@@ -0,0 +1,491 @@
+/*
+ *    CompactHoeffdingTree.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.trees;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.AbstractClassifier;
+import moa.classifiers.MultiClassClassifier;
+import moa.classifiers.core.attributeclassobservers.AttributeClassObserver;
+import moa.classifiers.core.attributeclassobservers.GaussianNumericAttributeClassObserver;
+import moa.classifiers.core.attributeclassobservers.GaussianObserverStatistics;
+import moa.classifiers.core.attributeclassobservers.NominalAttributeClassObserver;
+import moa.classifiers.core.attributeclassobservers.NullAttributeClassObserver;
+import moa.classifiers.core.conditionaltests.InstanceConditionalTest;
+import moa.core.DoubleVector;
+import moa.core.GaussianEstimator;
+import moa.core.Measurement;
+
+/**
+ * Prediction-only form of a trained HoeffdingTree, for models that are no
+ * longer trained.
+ *
+ * The nodes are held in flat arrays in pre-order: class distributions, child
+ * indices and, for leaves that predict with naive Bayes, the per-class
+ * statistics the attribute observers would use. Split and learning state such
+ * as split suggestions, byte size estimates and inactive statistics is not
+ * kept, and no per-node objects are left except the split tests.
+ * getVotesForInstance returns exactly what the tree returned when it was
+ * frozen.
+ *
+ * The full tree is kept serialised and deflated, and is only read by thaw(),
+ * which gives back an identical HoeffdingTree that can be trained again. It
+ * is usually the larger part of a frozen tree: getPredictionStateBytes() and
+ * getLearnerStateBytes() report both. compilePredictor() leaves it out, for
+ * prediction-only copies of a tree that is still being trained.
+ */
+public class CompactHoeffdingTree extends AbstractClassifier implements MultiClassClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	// How a naive Bayes leaf uses an attribute.
+	private static final byte ATTRIBUTE_IGNORED = 0;
+	private static final byte ATTRIBUTE_ZERO = 1;
+	private static final byte ATTRIBUTE_GAUSSIAN = 2;
+	private static final byte ATTRIBUTE_NOMINAL = 3;
+
+	// Per class: weight sum, mean, standard deviation, 1 / (sqrt(2 pi) sd), 2 sd^2.
+	private static final int GAUSSIAN_STRIDE = 5;
+
+	protected int numNodes;
+
+	protected InstanceConditionalTest[] splitTests;
+	protected int[] childrenStart;
+	protected int[] numChildren;
+	protected int[] children;
+
+	protected int[] distributionStart;
+	protected int[] distributionLength;
+	protected double[] distributions;
+
+	protected int[] naiveBayesStart;
+	protected int[] naiveBayesAttributes;
+	protected int[] statisticsStart;
+	protected double[] distributionSums;
+	protected byte[] attributeKinds;
+	protected double[] statistics;
+
+	protected byte[] learnerState;
+
+	@Override
+	public String getPurposeString() {
+		return "Prediction-only Hoeffding Tree compiled from a trained HoeffdingTree.";
+	}
+
+	/*
+	 * Returns null if the tree is not a plain HoeffdingTree or uses nodes or attribute
+	 * observers that cannot be compiled, in which case it should be kept as it is.
+	 */
+	public static CompactHoeffdingTree compile(HoeffdingTree tree) {
+		CompactHoeffdingTree compact = compilePredictor(tree);
+		if (compact == null) {
+			return null;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(bytes))) {
+				out.writeObject(tree);
+			}
+			compact.learnerState = bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to store the learner state of a frozen tree.", e);
+		}
+		return compact;
+	}
+
+	/*
+	 * As compile, but without the learner state, so the result cannot be thawed. Much cheaper
+	 * than compile or copy, for prediction-only copies of trees that are still trained: the
+	 * statistics are copied into the arrays, and only the split tests, which a tree never
+	 * changes once made, are shared with it.
+	 */
+	public static CompactHoeffdingTree compilePredictor(HoeffdingTree tree) {
+		if (tree.getClass() != HoeffdingTree.class) {
+			return null;
+		}
+
+		Compiler compiler = new Compiler(tree);
+		if (tree.treeRoot != null && compiler.add(tree.treeRoot) < 0) {
+			return null;
+		}
+
+		CompactHoeffdingTree compact = new CompactHoeffdingTree();
+		compiler.writeTo(compact);
+		compact.modelContext = tree.getModelContext();
+		compact.trainingWeightSeenByModel = tree.trainingWeightSeenByModel();
+		return compact;
+	}
+
+	/*
+	 * A new HoeffdingTree identical to the one this was compiled from.
+	 */
+	public HoeffdingTree thaw() {
+		if (this.learnerState == null) {
+			throw new IllegalStateException("A tree compiled with compilePredictor cannot be thawed.");
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(this.learnerState)))) {
+			return (HoeffdingTree) in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			throw new RuntimeException("Failed to restore the learner state of a frozen tree.", e);
+		}
+	}
+
+	@Override
+	public double[] getVotesForInstance(Instance inst) {
+		if (this.numNodes == 0) {
+			return new double[inst.dataset().numClasses()];
+		}
+
+		// As in HoeffdingTree, an instance that cannot be routed further stops at the split node.
+		int node = 0;
+		while (this.splitTests[node] != null) {
+			int branch = this.splitTests[node].branchForInstance(inst);
+			if (branch < 0 || branch >= this.numChildren[node]) {
+				break;
+			}
+			int child = this.children[this.childrenStart[node] + branch];
+			if (child < 0) {
+				break;
+			}
+			node = child;
+		}
+
+		if (this.naiveBayesStart[node] < 0) {
+			double[] votes = new double[this.distributionLength[node]];
+			System.arraycopy(this.distributions, this.distributionStart[node], votes, 0, votes.length);
+			return votes;
+		}
+		return this.naiveBayesVotes(node, inst);
+	}
+
+	/*
+	 * NaiveBayes.doNaiveBayesPrediction over the compiled statistics. The loops are swapped
+	 * (attributes outside), which multiplies each class's vote by the same factors in the
+	 * same order, so the result is identical.
+	 */
+	private double[] naiveBayesVotes(int node, Instance inst) {
+		int numClasses = this.distributionLength[node];
+		int distribution = this.distributionStart[node];
+		double[] votes = new double[numClasses];
+		for (int c = 0; c < numClasses; ++c) {
+			votes[c] = this.distributions[distribution + c] / this.distributionSums[node];
+		}
+
+		int attributes = Math.min(this.naiveBayesAttributes[node], inst.numAttributes() - 1);
+		int kinds = this.naiveBayesStart[node];
+		int cursor = this.statisticsStart[node];
+		for (int a = 0; a < attributes; ++a) {
+			byte kind = this.attributeKinds[kinds + a];
+			int instAttIndex = modelAttIndexToInstanceAttIndex(a, inst);
+			boolean use = kind != ATTRIBUTE_IGNORED && !inst.isMissing(instAttIndex);
+			double value = use ? inst.value(instAttIndex) : 0.0;
+
+			if (kind == ATTRIBUTE_ZERO) {
+				if (use) {
+					for (int c = 0; c < numClasses; ++c) {
+						votes[c] *= 0.0;
+					}
+				}
+			} else if (kind == ATTRIBUTE_GAUSSIAN) {
+				if (use) {
+					for (int c = 0, s = cursor; c < numClasses; ++c, s += GAUSSIAN_STRIDE) {
+						votes[c] *= gaussianDensity(this.statistics, s, value);
+					}
+				}
+				cursor += numClasses * GAUSSIAN_STRIDE;
+			} else if (kind == ATTRIBUTE_NOMINAL) {
+				int numValues = (int) this.statistics[cursor];
+				if (use) {
+					int v = (int) value;
+					for (int c = 0, s = cursor + 1; c < numClasses; ++c, s += numValues + 1) {
+						double denominator = this.statistics[s];
+						double count = (v >= 0 && v < numValues) ? this.statistics[s + 1 + v] : 0.0;
+						votes[c] *= Double.isNaN(denominator) ? 0.0 : (count + 1.0) / denominator;
+					}
+				}
+				cursor += 1 + numClasses * (numValues + 1);
+			}
+		}
+		return votes;
+	}
+
+	/*
+	 * GaussianEstimator.probabilityDensity with its intermediate terms precomputed.
+	 */
+	private static double gaussianDensity(double[] statistics, int s, double value) {
+		if (statistics[s] > 0.0) {
+			double mean = statistics[s + 1];
+			if (statistics[s + 2] > 0.0) {
+				double diff = value - mean;
+				return statistics[s + 3] * Math.exp(-(diff * diff / statistics[s + 4]));
+			}
+			return value == mean ? 1.0 : 0.0;
+		}
+		return 0.0;
+	}
+
+	@Override
+	public boolean isRandomizable() {
+		return false;
+	}
+
+	@Override
+	public void resetLearningImpl() {
+		throw new UnsupportedOperationException("A frozen tree cannot be reset; thaw() it first.");
+	}
+
+	@Override
+	public void trainOnInstanceImpl(Instance inst) {
+		throw new UnsupportedOperationException("A frozen tree cannot be trained; thaw() it first.");
+	}
+
+	@Override
+	protected Measurement[] getModelMeasurementsImpl() {
+		int leaves = 0;
+		for (int i = 0; i < this.numNodes; ++i) {
+			if (this.splitTests[i] == null) {
+				leaves++;
+			}
+		}
+		return new Measurement[] {
+				new Measurement("tree size (nodes)", this.numNodes),
+				new Measurement("tree size (leaves)", leaves),
+				new Measurement("prediction state (bytes)", this.getPredictionStateBytes()),
+				new Measurement("frozen learner state (bytes)", this.getLearnerStateBytes()) };
+	}
+
+	/*
+	 * Size of the flat arrays used for prediction, counting references as 8 bytes and not the
+	 * split test objects they point to.
+	 */
+	public long getPredictionStateBytes() {
+		if (this.numNodes == 0) {
+			return 0L;
+		}
+		long ints = this.childrenStart.length + this.numChildren.length + this.children.length
+				+ this.distributionStart.length + this.distributionLength.length
+				+ this.naiveBayesStart.length + this.naiveBayesAttributes.length + this.statisticsStart.length;
+		long doubles = this.distributions.length + this.distributionSums.length + this.statistics.length;
+		return 4L * ints + 8L * doubles + this.attributeKinds.length + 8L * this.splitTests.length;
+	}
+
+	/*
+	 * Size of the deflated full tree kept for thaw().
+	 */
+	public long getLearnerStateBytes() {
+		return this.learnerState == null ? 0L : this.learnerState.length;
+	}
+
+	@Override
+	public void getModelDescription(StringBuilder out, int indent) {
+		out.append("Frozen Hoeffding Tree with ").append(this.numNodes).append(" nodes");
+	}
+
+	private static class Compiler {
+
+		private final HoeffdingTree tree;
+
+		private final List<InstanceConditionalTest> splitTests = new ArrayList<InstanceConditionalTest>();
+		private final List<int[]> childLists = new ArrayList<int[]>();
+		private final List<double[]> distributions = new ArrayList<double[]>();
+		private final List<byte[]> kinds = new ArrayList<byte[]>();
+		private final List<double[]> statistics = new ArrayList<double[]>();
+
+		Compiler(HoeffdingTree tree) {
+			this.tree = tree;
+		}
+
+		/*
+		 * Returns the index of the node, or -1 if it cannot be compiled.
+		 */
+		int add(HoeffdingTree.Node node) {
+			int index = this.splitTests.size();
+			this.distributions.add(node.getObservedClassDistribution());
+
+			if (node instanceof HoeffdingTree.SplitNode) {
+				if (node.getClass() != HoeffdingTree.SplitNode.class) {
+					return -1;
+				}
+				HoeffdingTree.SplitNode split = (HoeffdingTree.SplitNode) node;
+				this.splitTests.add(split.splitTest);
+				int[] childIndices = new int[split.numChildren()];
+				this.childLists.add(childIndices);
+				this.kinds.add(null);
+				this.statistics.add(null);
+				for (int i = 0; i < childIndices.length; ++i) {
+					HoeffdingTree.Node child = split.getChild(i);
+					childIndices[i] = child == null ? -1 : this.add(child);
+					if (child != null && childIndices[i] < 0) {
+						return -1;
+					}
+				}
+				return index;
+			}
+
+			this.splitTests.add(null);
+			this.childLists.add(new int[0]);
+
+			Class<?> type = node.getClass();
+			boolean naiveBayes;
+			if (type == HoeffdingTree.ActiveLearningNode.class || type == HoeffdingTree.InactiveLearningNode.class) {
+				naiveBayes = false;
+			} else if (type == HoeffdingTree.LearningNodeNB.class) {
+				naiveBayes = ((HoeffdingTree.LearningNodeNB) node).getWeightSeen() >= this.tree.nbThresholdOption.getValue();
+			} else if (type == HoeffdingTree.LearningNodeNBAdaptive.class) {
+				HoeffdingTree.LearningNodeNBAdaptive adaptive = (HoeffdingTree.LearningNodeNBAdaptive) node;
+				naiveBayes = !(adaptive.mcCorrectWeight > adaptive.nbCorrectWeight);
+			} else {
+				return -1;
+			}
+
+			if (!naiveBayes) {
+				this.kinds.add(null);
+				this.statistics.add(null);
+				return index;
+			}
+			return this.addNaiveBayes((HoeffdingTree.ActiveLearningNode) node) ? index : -1;
+		}
+
+		private boolean addNaiveBayes(HoeffdingTree.ActiveLearningNode leaf) {
+			int numClasses = leaf.observedClassDistribution.numValues();
+			int numAttributes = leaf.attributeObservers.size();
+			byte[] attributeKinds = new byte[numAttributes];
+			List<Double> values = new ArrayList<Double>();
+
+			for (int a = 0; a < numAttributes; ++a) {
+				AttributeClassObserver observer = leaf.attributeObservers.get(a);
+				if (observer == null) {
+					attributeKinds[a] = ATTRIBUTE_IGNORED;
+				} else if (observer.getClass() == NullAttributeClassObserver.class) {
+					attributeKinds[a] = ATTRIBUTE_ZERO;
+				} else if (observer.getClass() == GaussianNumericAttributeClassObserver.class) {
+					attributeKinds[a] = ATTRIBUTE_GAUSSIAN;
+					for (int c = 0; c < numClasses; ++c) {
+						GaussianEstimator estimator = GaussianObserverStatistics.getEstimator((GaussianNumericAttributeClassObserver) observer, c);
+						double weightSum = estimator == null ? 0.0 : estimator.getTotalWeightObserved();
+						double stdDev = estimator == null ? 0.0 : estimator.getStdDev();
+						values.add(weightSum);
+						values.add(estimator == null ? 0.0 : estimator.getMean());
+						values.add(stdDev);
+						values.add(1.0 / (GaussianEstimator.NORMAL_CONSTANT * stdDev));
+						values.add(2.0 * stdDev * stdDev);
+					}
+				} else if (observer.getClass() == NominalAttributeClassObserver.class) {
+					attributeKinds[a] = ATTRIBUTE_NOMINAL;
+					NominalAttributeClassObserver nominal = (NominalAttributeClassObserver) observer;
+					int numValues = 0;
+					for (int c = 0; c < numClasses; ++c) {
+						DoubleVector counts = nominal.attValDistPerClass.get(c);
+						numValues = Math.max(numValues, counts == null ? 0 : counts.numValues());
+					}
+					values.add((double) numValues);
+					for (int c = 0; c < numClasses; ++c) {
+						DoubleVector counts = nominal.attValDistPerClass.get(c);
+						values.add(counts == null ? Double.NaN : counts.sumOfValues() + counts.numValues());
+						for (int v = 0; v < numValues; ++v) {
+							values.add(counts == null ? 0.0 : counts.getValue(v));
+						}
+					}
+				} else {
+					return false;
+				}
+			}
+
+			double[] leafStatistics = new double[values.size()];
+			for (int i = 0; i < leafStatistics.length; ++i) {
+				leafStatistics[i] = values.get(i);
+			}
+			this.kinds.add(attributeKinds);
+			this.statistics.add(leafStatistics);
+			return true;
+		}
+
+		void writeTo(CompactHoeffdingTree compact) {
+			int n = this.splitTests.size();
+			compact.numNodes = n;
+			compact.splitTests = this.splitTests.toArray(new InstanceConditionalTest[n]);
+			compact.childrenStart = new int[n];
+			compact.numChildren = new int[n];
+			compact.distributionStart = new int[n];
+			compact.distributionLength = new int[n];
+			compact.distributionSums = new double[n];
+			compact.naiveBayesStart = new int[n];
+			compact.naiveBayesAttributes = new int[n];
+			compact.statisticsStart = new int[n];
+
+			int totalChildren = 0, totalDistributions = 0, totalKinds = 0, totalStatistics = 0;
+			for (int i = 0; i < n; ++i) {
+				totalChildren += this.childLists.get(i).length;
+				totalDistributions += this.distributions.get(i).length;
+				totalKinds += this.kinds.get(i) == null ? 0 : this.kinds.get(i).length;
+				totalStatistics += this.statistics.get(i) == null ? 0 : this.statistics.get(i).length;
+			}
+			compact.children = new int[totalChildren];
+			compact.distributions = new double[totalDistributions];
+			compact.attributeKinds = new byte[totalKinds];
+			compact.statistics = new double[totalStatistics];
+
+			int childCursor = 0, distributionCursor = 0, kindCursor = 0, statisticsCursor = 0;
+			for (int i = 0; i < n; ++i) {
+				int[] childIndices = this.childLists.get(i);
+				compact.childrenStart[i] = childCursor;
+				compact.numChildren[i] = childIndices.length;
+				System.arraycopy(childIndices, 0, compact.children, childCursor, childIndices.length);
+				childCursor += childIndices.length;
+
+				double[] distribution = this.distributions.get(i);
+				compact.distributionStart[i] = distributionCursor;
+				compact.distributionLength[i] = distribution.length;
+				System.arraycopy(distribution, 0, compact.distributions, distributionCursor, distribution.length);
+				distributionCursor += distribution.length;
+				// Summed in the same order as DoubleVector.sumOfValues().
+				double sum = 0.0;
+				for (double d : distribution) {
+					sum += d;
+				}
+				compact.distributionSums[i] = sum;
+
+				byte[] leafKinds = this.kinds.get(i);
+				if (leafKinds == null) {
+					compact.naiveBayesStart[i] = -1;
+					continue;
+				}
+				compact.naiveBayesStart[i] = kindCursor;
+				compact.naiveBayesAttributes[i] = leafKinds.length;
+				System.arraycopy(leafKinds, 0, compact.attributeKinds, kindCursor, leafKinds.length);
+				kindCursor += leafKinds.length;
+
+				double[] leafStatistics = this.statistics.get(i);
+				compact.statisticsStart[i] = statisticsCursor;
+				System.arraycopy(leafStatistics, 0, compact.statistics, statisticsCursor, leafStatistics.length);
+				statisticsCursor += leafStatistics.length;
+			}
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ *    BinaryFileStream.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.streams;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import com.github.javacliparser.FileOption;
+import com.github.javacliparser.FlagOption;
+import com.yahoo.labs.samoa.instances.Attribute;
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instances;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.core.InstanceExample;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.tasks.TaskMonitor;
+
+/**
+ * Stream reader of the block-columnar binary files written by
+ * {@link moa.tasks.WriteStreamToBinaryFile}.
+ *
+ * The file is memory-mapped and attribute values are decoded straight from the
+ * mapped columns into the instance value array, so no text is parsed after the
+ * header. Layout (big-endian):
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * long   number of instances (-1 if the writer did not finish)
+ * int    block size (rows per block)
+ * int    class index
+ * int    number of attributes
+ * byte[] column type per attribute (COLUMN_*)
+ * int    length of the ARFF header, followed by the UTF-8 header text
+ * blocks: int rows, byte hasWeights, [double[rows] weights], one column per attribute
+ * </pre>
+ * Numeric columns store doubles (NaN for missing), nominal columns store the
+ * value index in the narrowest signed integer type that fits (-1 for missing).
+ */
+public class BinaryFileStream extends AbstractOptionHandler implements InstanceStream {
+
+	@Override
+	public String getPurposeString() {
+		return "A stream read from a memory-mapped binary file.";
+	}
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int MAGIC = 0x4D4F4142; // "MOAB"
+
+	public static final int VERSION = 1;
+
+	public static final byte COLUMN_DOUBLE = 0;
+	public static final byte COLUMN_BYTE = 1;
+	public static final byte COLUMN_SHORT = 2;
+	public static final byte COLUMN_INT = 3;
+
+	/** Largest region mapped at once; blocks never straddle two regions. */
+	protected static final long MAX_MAPPED_REGION = 1L << 30;
+
+	public FileOption binaryFileOption = new FileOption("binaryFile", 'f',
+			"Binary stream file to load.", null, "bin", false);
+
+	public FlagOption reuseInstanceOption = new FlagOption("reuseInstance", 'r',
+			"Overwrite and return the same instance on every call. Only safe when the learner does not keep "
+			+ "references to past instances (CDCMS keeps a window of them, so leave this off for CDCMS).");
+
+	protected Instances instances;
+
+	protected transient FileChannel channel;
+
+	protected transient MappedByteBuffer region;
+
+	protected long regionStart;
+
+	protected long fileSize;
+
+	protected long numInstances;
+
+	protected int numInstancesRead;
+
+	protected byte[] columnTypes;
+
+	protected long nextBlockPosition;
+
+	protected int blockRows;
+
+	protected int rowInBlock;
+
+	protected int weightsOffset;
+
+	protected int[] columnOffsets;
+
+	protected double[] reusedValues;
+
+	protected DenseInstance reusedInstance;
+
+	protected InstanceExample reusedExample;
+
+	public BinaryFileStream() {
+	}
+
+	public BinaryFileStream(String binaryFileName) {
+		this.binaryFileOption.setValue(binaryFileName);
+		restart();
+	}
+
+	public static int columnWidth(byte columnType) {
+		switch (columnType) {
+			case COLUMN_DOUBLE:
+				return Double.BYTES;
+			case COLUMN_BYTE:
+				return Byte.BYTES;
+			case COLUMN_SHORT:
+				return Short.BYTES;
+			case COLUMN_INT:
+				return Integer.BYTES;
+			default:
+				throw new IllegalArgumentException("Unknown column type " + columnType);
+		}
+	}
+
+	public static byte columnTypeFor(Attribute attribute) {
+		if (!attribute.isNominal()) {
+			return COLUMN_DOUBLE;
+		} else if (attribute.numValues() <= Byte.MAX_VALUE) {
+			return COLUMN_BYTE;
+		} else if (attribute.numValues() <= Short.MAX_VALUE) {
+			return COLUMN_SHORT;
+		}
+		return COLUMN_INT;
+	}
+
+	@Override
+	public void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+		restart();
+	}
+
+	@Override
+	public InstancesHeader getHeader() {
+		return new InstancesHeader(this.instances);
+	}
+
+	@Override
+	public long estimatedRemainingInstances() {
+		return this.numInstances < 0 ? -1 : this.numInstances - this.numInstancesRead;
+	}
+
+	@Override
+	public boolean hasMoreInstances() {
+		return this.rowInBlock < this.blockRows || this.nextBlockPosition < this.fileSize;
+	}
+
+	@Override
+	public InstanceExample nextInstance() {
+		if (this.rowInBlock >= this.blockRows) {
+			this.readBlockHeader();
+		}
+
+		int numAttributes = this.columnTypes.length;
+		double[] values = this.reuseInstanceOption.isSet() ? this.reusedValues : new double[numAttributes];
+		for (int i = 0; i < numAttributes; ++i) {
+			values[i] = this.readValue(i, this.rowInBlock);
+		}
+		double weight = this.weightsOffset < 0 ? 1.0
+				: this.region.getDouble(this.weightsOffset + this.rowInBlock * Double.BYTES);
+
+		this.rowInBlock++;
+		this.numInstancesRead++;
+
+		if (this.reuseInstanceOption.isSet()) {
+			this.reusedInstance.setWeight(weight);
+			return this.reusedExample;
+		}
+		DenseInstance inst = new DenseInstance(weight, values);
+		inst.setDataset(this.instances);
+		return new InstanceExample(inst);
+	}
+
+	protected double readValue(int attIndex, int row) {
+		int offset = this.columnOffsets[attIndex];
+		int nominal;
+		switch (this.columnTypes[attIndex]) {
+			case COLUMN_DOUBLE:
+				return this.region.getDouble(offset + row * Double.BYTES);
+			case COLUMN_BYTE:
+				nominal = this.region.get(offset + row);
+				break;
+			case COLUMN_SHORT:
+				nominal = this.region.getShort(offset + row * Short.BYTES);
+				break;
+			default:
+				nominal = this.region.getInt(offset + row * Integer.BYTES);
+				break;
+		}
+		return nominal < 0 ? Double.NaN : nominal;
+	}
+
+	/*
+	 * Maps the next block (remapping the region if it does not fit) and
+	 * computes the absolute offsets of its weight and attribute columns.
+	 */
+	protected void readBlockHeader() {
+		long blockStart = this.nextBlockPosition;
+		this.ensureMapped(blockStart, Integer.BYTES + 1);
+		int position = (int) (blockStart - this.regionStart);
+		int rows = this.region.getInt(position);
+		boolean hasWeights = this.region.get(position + Integer.BYTES) != 0;
+
+		long blockLength = Integer.BYTES + 1 + (hasWeights ? (long) rows * Double.BYTES : 0);
+		for (byte columnType : this.columnTypes) {
+			blockLength += (long) rows * columnWidth(columnType);
+		}
+		this.ensureMapped(blockStart, blockLength);
+
+		int offset = (int) (blockStart - this.regionStart) + Integer.BYTES + 1;
+		if (hasWeights) {
+			this.weightsOffset = offset;
+			offset += rows * Double.BYTES;
+		} else {
+			this.weightsOffset = -1;
+		}
+		for (int i = 0; i < this.columnTypes.length; ++i) {
+			this.columnOffsets[i] = offset;
+			offset += rows * columnWidth(this.columnTypes[i]);
+		}
+
+		this.blockRows = rows;
+		this.rowInBlock = 0;
+		this.nextBlockPosition = blockStart + blockLength;
+	}
+
+	protected void ensureMapped(long position, long length) {
+		if (this.region != null && position >= this.regionStart
+				&& position + length <= this.regionStart + this.region.limit()) {
+			return;
+		}
+		if (length > Integer.MAX_VALUE || position + length > this.fileSize) {
+			throw new RuntimeException("BinaryFileStream found a truncated or oversized block at " + position + ".");
+		}
+		try {
+			long size = Math.min(this.fileSize - position, Math.max(MAX_MAPPED_REGION, length));
+			this.region = this.channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+			this.regionStart = position;
+		} catch (IOException ioe) {
+			throw new RuntimeException("BinaryFileStream failed to map file region.", ioe);
+		}
+	}
+
+	@Override
+	public boolean isRestartable() {
+		return true;
+	}
+
+	@Override
+	public void restart() {
+		try {
+			if (this.channel != null) {
+				this.channel.close();
+			}
+			this.channel = FileChannel.open(this.binaryFileOption.getFile().toPath(), StandardOpenOption.READ);
+			this.fileSize = this.channel.size();
+			this.region = null;
+			this.ensureMapped(0, Math.min(this.fileSize, 6 * Integer.BYTES + Long.BYTES));
+
+			ByteBuffer in = this.region;
+			if (in.getInt(0) != MAGIC || in.getInt(Integer.BYTES) != VERSION) {
+				throw new IOException("Not a version " + VERSION + " binary stream file.");
+			}
+			this.numInstances = in.getLong(2 * Integer.BYTES);
+			int classIndex = in.getInt(2 * Integer.BYTES + Long.BYTES + Integer.BYTES);
+			int numAttributes = in.getInt(2 * Integer.BYTES + Long.BYTES + 2 * Integer.BYTES);
+
+			long position = 5 * Integer.BYTES + Long.BYTES;
+			this.ensureMapped(0, position + numAttributes + Integer.BYTES);
+			this.columnTypes = new byte[numAttributes];
+			for (int i = 0; i < numAttributes; ++i) {
+				this.columnTypes[i] = this.region.get((int) position++);
+			}
+			int headerLength = this.region.getInt((int) position);
+			position += Integer.BYTES;
+			this.ensureMapped(0, position + headerLength);
+			byte[] header = new byte[headerLength];
+			ByteBuffer headerBuffer = this.region.duplicate();
+			headerBuffer.position((int) position);
+			headerBuffer.get(header);
+			position += headerLength;
+
+			this.instances = new Instances(new StringReader(new String(header, StandardCharsets.UTF_8)), 1, -1);
+			this.instances.setClassIndex(classIndex);
+
+			this.columnOffsets = new int[numAttributes];
+			this.nextBlockPosition = position;
+			this.blockRows = 0;
+			this.rowInBlock = 0;
+			this.numInstancesRead = 0;
+
+			this.reusedValues = new double[numAttributes];
+			this.reusedInstance = new DenseInstance(1.0, this.reusedValues);
+			this.reusedInstance.setDataset(this.instances);
+			this.reusedExample = new InstanceExample(this.reusedInstance);
+		} catch (IOException ioe) {
+			throw new RuntimeException("BinaryFileStream restart failed.", ioe);
+		}
+	}
+
+	@Override
+	public void getDescription(StringBuilder sb, int indent) {
+		// TODO Auto-generated method stub
+	}
+}
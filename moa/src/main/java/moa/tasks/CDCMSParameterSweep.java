@@ -0,0 +1,284 @@
+/*
+ *    CDCMSParameterSweep.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+import com.github.javacliparser.FileOption;
+import com.github.javacliparser.FloatOption;
+import com.github.javacliparser.IntOption;
+import com.github.javacliparser.ListOption;
+import com.github.javacliparser.Option;
+import com.github.javacliparser.StringOption;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.classifiers.meta.CDCMS;
+import moa.core.ObjectRepository;
+import moa.options.ClassOption;
+import moa.streams.InstanceStream;
+
+/**
+ * Task to evaluate CDCMS prequentially over a grid of hyper-parameter values,
+ * as in the time-memory-accuracy analysis of the paper, running several
+ * configurations at once.
+ *
+ * The stream is decoded into memory once and shared read-only by every run.
+ * Each configuration runs inside its own ForkJoinPool, so the parallel streams
+ * used by CDCMS stay within that pool instead of competing for the common one,
+ * and its CPU time is the CPU time of that pool's threads. One CSV row is
+ * written per configuration.
+ */
+public class CDCMSParameterSweep extends AuxiliarMainTask {
+
+	@Override
+	public String getPurposeString() {
+		return "Evaluates CDCMS prequentially over a grid of parameter values, running configurations concurrently.";
+	}
+
+	private static final long serialVersionUID = 1L;
+
+	public ClassOption learnerOption = new ClassOption("learner", 'l',
+			"CDCMS configuration the grid values are applied to.", CDCMS.class, "CDCMS");
+
+	public ClassOption streamOption = new ClassOption("stream", 's',
+			"Stream to evaluate on. It is decoded into memory once, so it must not reuse instances.",
+			InstanceStream.class, "ArffFileStream");
+
+	public ListOption ensembleSizesOption = new ListOption("ensembleSizes", 'k',
+			"Values of ensembleSize to evaluate.",
+			new IntOption("value", ' ', "Parameter value.", 10, 1, Integer.MAX_VALUE),
+			new IntOption[] { new IntOption("", ' ', "", 10) }, ',');
+
+	public ListOption repositorySizeMultiplesOption = new ListOption("repositorySizeMultiples", 'n',
+			"Values of repositorySizeMultiple to evaluate.",
+			new IntOption("value", ' ', "Parameter value.", 10, 1, Integer.MAX_VALUE),
+			new IntOption[] { new IntOption("", ' ', "", 10) }, ',');
+
+	public ListOption windowSizesOption = new ListOption("windowSizes", 'b',
+			"Values of windowSize to evaluate.",
+			new IntOption("value", ' ', "Parameter value.", 500, 1, Integer.MAX_VALUE),
+			new IntOption[] { new IntOption("", ' ', "", 500) }, ',');
+
+	public ListOption similarityThresholdsOption = new ListOption("similarityThresholds", 't',
+			"Values of similarityThreshold to evaluate.",
+			new FloatOption("value", ' ', "Parameter value.", 0.8, 0.0, 1.0),
+			new FloatOption[] { new FloatOption("", ' ', "", 0.8) }, ',');
+
+	public ListOption clustererSettingsOption = new ListOption("clustererSettings", 'c',
+			"Clusterer settings to evaluate, each as 'Clusterer' or 'Clusterer:parameters' (e.g. 'SimpleKMeans:-N 5'). "
+			+ "Empty to keep the learner's own setting.",
+			new StringOption("value", ' ', "Clusterer setting.", ""),
+			new StringOption[0], ';');
+
+	public FileOption outputFileOption = new FileOption("outputFile", 'o',
+			"CSV file to write the results to.", null, "csv", true);
+
+	public IntOption instanceLimitOption = new IntOption("instanceLimit", 'i',
+			"Maximum number of instances to test/train on (-1 = no limit).",
+			-1, -1, Integer.MAX_VALUE);
+
+	public IntOption sampleFrequencyOption = new IntOption("sampleFrequency", 'f',
+			"How many instances between model size samples for RAM-Hours.",
+			100000, 1, Integer.MAX_VALUE);
+
+	public IntOption concurrentConfigurationsOption = new IntOption("concurrentConfigurations", 'r',
+			"Number of configurations evaluated at once (0 = number of cores / threadsPerConfiguration).",
+			0, 0, Integer.MAX_VALUE);
+
+	public IntOption threadsPerConfigurationOption = new IntOption("threadsPerConfiguration", 'p',
+			"Parallelism of the thread pool each configuration runs in.",
+			1, 1, Integer.MAX_VALUE);
+
+	@Override
+	protected Object doMainTask(TaskMonitor monitor, ObjectRepository repository) {
+		File destFile = this.outputFileOption.getFile();
+		if (destFile == null) {
+			throw new IllegalArgumentException("No destination file to write to.");
+		}
+
+		CDCMS template = (CDCMS) getPreparedClassOption(this.learnerOption);
+		InstanceStream stream = (InstanceStream) getPreparedClassOption(this.streamOption);
+
+		monitor.setCurrentActivity("Decoding stream...", -1.0);
+		InstancesHeader header = stream.getHeader();
+		List<Instance> data = new ArrayList<Instance>();
+		long maxInstances = this.instanceLimitOption.getValue() < 0 ? Long.MAX_VALUE : this.instanceLimitOption.getValue();
+		while (data.size() < maxInstances && stream.hasMoreInstances()) {
+			data.add(stream.nextInstance().getData());
+		}
+		List<Instance> sharedData = Collections.unmodifiableList(data);
+
+		List<CDCMS> configurations = this.buildConfigurations(template);
+
+		int threadsPerConfiguration = this.threadsPerConfigurationOption.getValue();
+		int concurrent = this.concurrentConfigurationsOption.getValue();
+		if (concurrent == 0) {
+			concurrent = Math.max(1, Runtime.getRuntime().availableProcessors() / threadsPerConfiguration);
+		}
+
+		monitor.setCurrentActivity("Evaluating " + configurations.size() + " configurations...", 0.0);
+		ExecutorService executor = Executors.newFixedThreadPool(concurrent);
+		try (PrintWriter out = new PrintWriter(destFile)) {
+			List<Future<String>> rows = new ArrayList<Future<String>>(configurations.size());
+			for (CDCMS learner : configurations) {
+				rows.add(executor.submit(() -> this.evaluateIsolated(learner, header, sharedData, threadsPerConfiguration)));
+			}
+
+			out.println("ensembleSize,repositorySizeMultiple,windowSize,similarityThreshold,clusterer,clustererParameters,"
+					+ "instances,accuracy,cpuSeconds,ramHours,wallSeconds");
+			for (int i = 0; i < rows.size(); ++i) {
+				out.println(rows.get(i).get());
+				out.flush();
+				monitor.setCurrentActivityFractionComplete((i + 1.0) / rows.size());
+				if (monitor.taskShouldAbort()) {
+					return null;
+				}
+			}
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed writing to file " + destFile, ex);
+		} finally {
+			executor.shutdownNow();
+		}
+		return "Parameter sweep of " + configurations.size() + " configurations written to " + destFile;
+	}
+
+	protected List<CDCMS> buildConfigurations(CDCMS template) {
+		Option[] clustererSettings = this.clustererSettingsOption.getList();
+		if (clustererSettings.length == 0) {
+			clustererSettings = new Option[] { null };
+		}
+
+		List<CDCMS> configurations = new ArrayList<CDCMS>();
+		for (Option k : this.ensembleSizesOption.getList()) {
+			for (Option n : this.repositorySizeMultiplesOption.getList()) {
+				for (Option b : this.windowSizesOption.getList()) {
+					for (Option s : this.similarityThresholdsOption.getList()) {
+						for (Option c : clustererSettings) {
+							CDCMS learner = (CDCMS) template.copy();
+							learner.poolSizeOption.setValue(((IntOption) k).getValue());
+							learner.repositorySizeOption.setValue(((IntOption) n).getValue());
+							learner.windowSizeOption.setValue(((IntOption) b).getValue());
+							learner.similarityThresholdOption.setValue(((FloatOption) s).getValue());
+							if (c != null) {
+								String setting = ((StringOption) c).getValue().trim();
+								int split = setting.indexOf(':');
+								learner.wekaAlgorithmOption.setChosenLabel(split < 0 ? setting : setting.substring(0, split).trim());
+								if (split >= 0) {
+									learner.parameterOption.setValue(setting.substring(split + 1).trim());
+								}
+							}
+							configurations.add(learner);
+						}
+					}
+				}
+			}
+		}
+		return configurations;
+	}
+
+	protected String evaluateIsolated(CDCMS learner, InstancesHeader header, List<Instance> data, int parallelism) throws Exception {
+		List<Thread> workers = Collections.synchronizedList(new ArrayList<Thread>());
+		ForkJoinPool pool = new ForkJoinPool(parallelism, p -> {
+			ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			workers.add(worker);
+			return worker;
+		}, null, false);
+		try {
+			return pool.submit(() -> this.evaluate(learner, header, data, workers)).get();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	protected String evaluate(CDCMS learner, InstancesHeader header, List<Instance> data, List<Thread> workers) {
+		learner.prepareForUse();
+		learner.setModelContext(header);
+		learner.resetLearning();
+
+		long wallStart = System.nanoTime();
+		long cpuStart = cpuTimeOf(workers);
+		long lastSampleCpu = cpuStart;
+		double ramHours = 0.0;
+		double correct = 0.0;
+		double seen = 0.0;
+		int processed = 0;
+		for (Instance inst : data) {
+			if (learner.correctlyClassifies(inst)) {
+				correct += inst.weight();
+			}
+			seen += inst.weight();
+			learner.trainOnInstance(inst);
+
+			if (++processed % this.sampleFrequencyOption.getValue() == 0 || processed == data.size()) {
+				long cpu = cpuTimeOf(workers);
+				ramHours += learner.measureByteSize() / (1024.0 * 1024.0 * 1024.0) * ((cpu - lastSampleCpu) / 1.0e9 / 3600.0);
+				lastSampleCpu = cpu;
+			}
+		}
+		double cpuSeconds = (cpuTimeOf(workers) - cpuStart) / 1.0e9;
+		double wallSeconds = (System.nanoTime() - wallStart) / 1.0e9;
+
+		return learner.poolSizeOption.getValue() + ","
+				+ learner.repositorySizeOption.getValue() + ","
+				+ learner.windowSizeOption.getValue() + ","
+				+ learner.similarityThresholdOption.getValue() + ","
+				+ learner.wekaAlgorithmOption.getChosenLabel() + ","
+				+ "\"" + learner.parameterOption.getValue().replace("\"", "\"\"") + "\","
+				+ processed + ","
+				+ (seen > 0.0 ? 100.0 * correct / seen : 0.0) + ","
+				+ cpuSeconds + ","
+				+ ramHours + ","
+				+ wallSeconds;
+	}
+
+	/*
+	 * CPU time of the live threads of a configuration's pool. Workers that retired
+	 * during the run report -1 and are left out.
+	 */
+	private static long cpuTimeOf(List<Thread> workers) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long total = 0;
+		synchronized (workers) {
+			for (Thread worker : workers) {
+				long cpu = threadBean.getThreadCpuTime(worker.getId());
+				if (cpu > 0) {
+					total += cpu;
+				}
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public Class<?> getTaskResultType() {
+		return String.class;
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ *    CDCMSTrace.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.classifiers.meta.CDCMS;
+import moa.streams.BinaryFileStream;
+
+/**
+ * A recorded CDCMS run: the instances in the order they were trained on, what
+ * the drift detector decided on each and what CDCMS did, as written by
+ * {@link RecordCDCMSTrace} and read by {@link ReplayCDCMSTrace}.
+ *
+ * The file is gzip-compressed. Uncompressed layout (big-endian):
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * int    length of the CLI string of the recorded learner, followed by its UTF-8 text
+ * int    class index
+ * int    number of attributes
+ * byte[] column type per attribute (BinaryFileStream.COLUMN_*)
+ * int    length of the ARFF header, followed by the UTF-8 header text
+ * records until the end of the file:
+ *   byte     CDCMS.TRANSITION_* bits
+ *   byte     WEIGHT_FOLLOWS if the weight is not 1, else 0
+ *   [double  weight]
+ *   values   one per attribute, encoded as the columns of BinaryFileStream
+ *   [int[4]  NL, OL, NH and repository sizes after training, for STRUCTURAL records]
+ * </pre>
+ */
+public final class CDCMSTrace {
+
+	public static final int MAGIC = 0x4D4F4154; // "MOAT"
+
+	public static final int VERSION = 2;
+
+	public static final int WEIGHT_FOLLOWS = 1;
+
+	/** Transitions that change the ensembles or the repository. */
+	public static final int STRUCTURAL = CDCMS.TRANSITION_DRIFT_HANDLED | CDCMS.TRANSITION_WINDOW | CDCMS.TRANSITION_NL_RECOVERY;
+
+	public final String learnerCLIString;
+
+	public final InstancesHeader header;
+
+	public final List<Instance> instances;
+
+	public final int[] transitions;
+
+	/** Sizes recorded after each STRUCTURAL record, null for the others. */
+	public final int[][] sizes;
+
+	private CDCMSTrace(String learnerCLIString, InstancesHeader header, List<Instance> instances, int[] transitions, int[][] sizes) {
+		this.learnerCLIString = learnerCLIString;
+		this.header = header;
+		this.instances = instances;
+		this.transitions = transitions;
+		this.sizes = sizes;
+	}
+
+	/*
+	 * Reads a whole trace, so that decoding is not part of a replay.
+	 */
+	public static CDCMSTrace read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a version " + VERSION + " CDCMS trace file.");
+			}
+			String learnerCLIString = readText(in);
+			int classIndex = in.readInt();
+			byte[] columnTypes = new byte[in.readInt()];
+			in.readFully(columnTypes);
+			Instances dataset = new Instances(new StringReader(readText(in)), 1, -1);
+			dataset.setClassIndex(classIndex);
+			InstancesHeader header = new InstancesHeader(dataset);
+
+			List<Instance> instances = new ArrayList<Instance>();
+			List<Integer> transitions = new ArrayList<Integer>();
+			List<int[]> sizes = new ArrayList<int[]>();
+			while (true) {
+				int recorded;
+				try {
+					recorded = in.readUnsignedByte();
+				} catch (EOFException eof) {
+					break;
+				}
+				double weight = (in.readUnsignedByte() & WEIGHT_FOLLOWS) != 0 ? in.readDouble() : 1.0;
+				double[] values = new double[columnTypes.length];
+				for (int i = 0; i < columnTypes.length; ++i) {
+					values[i] = readValue(in, columnTypes[i]);
+				}
+				Instance inst = new DenseInstance(weight, values);
+				inst.setDataset(header);
+				instances.add(inst);
+
+				transitions.add(recorded);
+				if ((recorded & STRUCTURAL) != 0) {
+					sizes.add(new int[] { in.readInt(), in.readInt(), in.readInt(), in.readInt() });
+				} else {
+					sizes.add(null);
+				}
+			}
+
+			int[] transitionArray = new int[transitions.size()];
+			for (int i = 0; i < transitionArray.length; ++i) {
+				transitionArray[i] = transitions.get(i);
+			}
+			return new CDCMSTrace(learnerCLIString, header, instances, transitionArray, sizes.toArray(new int[sizes.size()][]));
+		}
+	}
+
+	private static String readText(DataInputStream in) throws IOException {
+		byte[] text = new byte[in.readInt()];
+		in.readFully(text);
+		return new String(text, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Length-prefixed, as writeUTF is limited to 64 KB.
+	 */
+	private static void writeText(DataOutputStream out, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static double readValue(DataInputStream in, byte columnType) throws IOException {
+		int nominal;
+		switch (columnType) {
+			case BinaryFileStream.COLUMN_DOUBLE:
+				return in.readDouble();
+			case BinaryFileStream.COLUMN_BYTE:
+				nominal = in.readByte();
+				break;
+			case BinaryFileStream.COLUMN_SHORT:
+				nominal = in.readShort();
+				break;
+			default:
+				nominal = in.readInt();
+				break;
+		}
+		return nominal < 0 ? Double.NaN : nominal;
+	}
+
+	public static class Writer implements Closeable {
+
+		private final DataOutputStream out;
+
+		private final byte[] columnTypes;
+
+		public Writer(File file, String learnerCLIString, InstancesHeader header) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+			this.columnTypes = new byte[header.numAttributes()];
+			for (int i = 0; i < this.columnTypes.length; ++i) {
+				this.columnTypes[i] = BinaryFileStream.columnTypeFor(header.attribute(i));
+			}
+
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+			writeText(this.out, learnerCLIString);
+			this.out.writeInt(header.classIndex());
+			this.out.writeInt(this.columnTypes.length);
+			this.out.write(this.columnTypes);
+			writeText(this.out, header.toString());
+		}
+
+		/*
+		 * sizes is only written, and only needed, if transitions has a STRUCTURAL bit.
+		 */
+		public void write(Instance inst, int transitions, int[] sizes) throws IOException {
+			if ((transitions & ~0xFF) != 0) {
+				throw new IllegalArgumentException("Transitions " + Integer.toBinaryString(transitions) + " do not fit in the record's byte.");
+			}
+			boolean weighted = inst.weight() != 1.0;
+			this.out.writeByte(transitions);
+			this.out.writeByte(weighted ? WEIGHT_FOLLOWS : 0);
+			if (weighted) {
+				this.out.writeDouble(inst.weight());
+			}
+			for (int i = 0; i < this.columnTypes.length; ++i) {
+				double value = inst.value(i);
+				int nominal = Double.isNaN(value) ? -1 : (int) value;
+				switch (this.columnTypes[i]) {
+					case BinaryFileStream.COLUMN_DOUBLE:
+						this.out.writeDouble(value);
+						break;
+					case BinaryFileStream.COLUMN_BYTE:
+						this.out.writeByte(nominal);
+						break;
+					case BinaryFileStream.COLUMN_SHORT:
+						this.out.writeShort(nominal);
+						break;
+					default:
+						this.out.writeInt(nominal);
+						break;
+				}
+			}
+			if ((transitions & STRUCTURAL) != 0) {
+				for (int size : sizes) {
+					this.out.writeInt(size);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.out.close();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ *    ExportCDCMSConceptLibrary.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import java.io.File;
+
+import com.github.javacliparser.FileOption;
+import com.github.javacliparser.IntOption;
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.meta.CDCMS;
+import moa.core.ObjectRepository;
+import moa.options.ClassOption;
+import moa.streams.InstanceStream;
+
+/**
+ * Task to train CDCMS on a stream and export its repository as a concept
+ * library, which another CDCMS can start with through its conceptLibrary
+ * option.
+ */
+public class ExportCDCMSConceptLibrary extends AuxiliarMainTask {
+
+	@Override
+	public String getPurposeString() {
+		return "Trains CDCMS on a stream and exports its repository models to a concept library file.";
+	}
+
+	private static final long serialVersionUID = 1L;
+
+	public ClassOption learnerOption = new ClassOption("learner", 'l',
+			"CDCMS configuration to train.", CDCMS.class, "CDCMS");
+
+	public ClassOption streamOption = new ClassOption("stream", 's',
+			"Stream to learn from.", InstanceStream.class, "ArffFileStream");
+
+	public FileOption libraryFileOption = new FileOption("libraryFile", 'f',
+			"Destination concept library file.", null, "library", true);
+
+	public IntOption instanceLimitOption = new IntOption("instanceLimit", 'i',
+			"Maximum number of instances to train on (-1 = no limit).",
+			-1, -1, Integer.MAX_VALUE);
+
+	@Override
+	protected Object doMainTask(TaskMonitor monitor, ObjectRepository repository) {
+		File destFile = this.libraryFileOption.getFile();
+		if (destFile == null) {
+			throw new IllegalArgumentException("No destination file to write to.");
+		}
+
+		CDCMS learner = (CDCMS) getPreparedClassOption(this.learnerOption);
+		InstanceStream stream = (InstanceStream) getPreparedClassOption(this.streamOption);
+		learner.setModelContext(stream.getHeader());
+		learner.resetLearning();
+
+		long maxInstances = this.instanceLimitOption.getValue() < 0 ? Long.MAX_VALUE : this.instanceLimitOption.getValue();
+		long trained = 0;
+		monitor.setCurrentActivity("Training CDCMS...", -1.0);
+		while (trained < maxInstances && stream.hasMoreInstances()) {
+			Instance inst = stream.nextInstance().getData();
+			learner.trainOnInstance(inst);
+			trained++;
+
+			if (monitor.taskShouldAbort()) {
+				return null;
+			}
+		}
+
+		monitor.setCurrentActivity("Exporting concept library...", -1.0);
+		try {
+			learner.exportConceptLibrary(destFile);
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed writing to file " + destFile, ex);
+		}
+		return "Concept library of " + learner.getEnsembleAndRepositorySizes()[3] + " models, trained on " + trained
+				+ " instances, written to " + destFile;
+	}
+
+	@Override
+	public Class<?> getTaskResultType() {
+		return String.class;
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ *    RecordCDCMSTrace.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import java.io.File;
+
+import com.github.javacliparser.FileOption;
+import com.github.javacliparser.IntOption;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.classifiers.meta.CDCMS;
+import moa.core.ObjectRepository;
+import moa.options.ClassOption;
+import moa.streams.InstanceStream;
+
+/**
+ * Task to run CDCMS prequentially on a stream and record the run as a
+ * {@link CDCMSTrace}, for {@link ReplayCDCMSTrace} to replay later with the
+ * same drift points.
+ */
+public class RecordCDCMSTrace extends AuxiliarMainTask {
+
+	@Override
+	public String getPurposeString() {
+		return "Records the instances, drift detector decisions and state transitions of a CDCMS run to a trace file.";
+	}
+
+	private static final long serialVersionUID = 1L;
+
+	public ClassOption learnerOption = new ClassOption("learner", 'l',
+			"CDCMS configuration to record.", CDCMS.class, "CDCMS");
+
+	public ClassOption streamOption = new ClassOption("stream", 's',
+			"Stream to learn from.", InstanceStream.class, "ArffFileStream");
+
+	public FileOption traceFileOption = new FileOption("traceFile", 'f',
+			"Destination trace file.", null, "trace", true);
+
+	public IntOption instanceLimitOption = new IntOption("instanceLimit", 'i',
+			"Maximum number of instances to test/train on (-1 = no limit).",
+			-1, -1, Integer.MAX_VALUE);
+
+	@Override
+	protected Object doMainTask(TaskMonitor monitor, ObjectRepository repository) {
+		File destFile = this.traceFileOption.getFile();
+		if (destFile == null) {
+			throw new IllegalArgumentException("No destination file to write to.");
+		}
+
+		CDCMS learner = (CDCMS) getPreparedClassOption(this.learnerOption);
+		InstanceStream stream = (InstanceStream) getPreparedClassOption(this.streamOption);
+		InstancesHeader header = stream.getHeader();
+		learner.setModelContext(header);
+		learner.resetLearning();
+
+		long maxInstances = this.instanceLimitOption.getValue() < 0 ? Long.MAX_VALUE : this.instanceLimitOption.getValue();
+		long recorded = 0;
+		long drifts = 0;
+		monitor.setCurrentActivity("Recording CDCMS trace...", -1.0);
+		try (CDCMSTrace.Writer writer = new CDCMSTrace.Writer(destFile, learner.getCLICreationString(CDCMS.class), header)) {
+			while (recorded < maxInstances && stream.hasMoreInstances()) {
+				Instance inst = stream.nextInstance().getData();
+				learner.correctlyClassifies(inst);
+				learner.trainOnInstance(inst);
+
+				int transitions = learner.getLastTransitions();
+				writer.write(inst, transitions, (transitions & CDCMSTrace.STRUCTURAL) != 0 ? learner.getEnsembleAndRepositorySizes() : null);
+				if ((transitions & CDCMS.TRANSITION_DRIFT_HANDLED) != 0) {
+					drifts++;
+				}
+				recorded++;
+
+				if (monitor.taskShouldAbort()) {
+					return null;
+				}
+			}
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed writing to file " + destFile, ex);
+		}
+		return "Trace of " + recorded + " instances and " + drifts + " drifts written to " + destFile;
+	}
+
+	@Override
+	public Class<?> getTaskResultType() {
+		return String.class;
+	}
+}
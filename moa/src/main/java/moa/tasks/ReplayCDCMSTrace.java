@@ -0,0 +1,269 @@
+/*
+ *    ReplayCDCMSTrace.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import com.github.javacliparser.FileOption;
+import com.github.javacliparser.IntOption;
+import com.github.javacliparser.StringOption;
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.core.driftdetection.ReplayedChangeDetector;
+import moa.classifiers.meta.CDCMS;
+import moa.core.ObjectRepository;
+import moa.options.ClassOption;
+
+/**
+ * Task to replay a {@link CDCMSTrace} against the CDCMS on the classpath and
+ * report where the time and allocations go, phase by phase.
+ *
+ * The drift detector is replaced by one that replays the recorded decisions,
+ * so drifts happen on the same instances as in the recording whatever the
+ * learner predicts. Each instance is timed twice: the prediction, and the
+ * training, which is put in the phase of what CDCMS did (drift handling, NL
+ * recovery, window boundary, warning precomputation or plain training).
+ * Replays run on a single-thread pool, so that allocations made by the
+ * parallel streams inside CDCMS are counted on the measured thread.
+ *
+ * Given the report of a replay of the same trace with another build, the
+ * report also shows the change per phase. Records where the ensembles or the
+ * repository changed differently from the recording are counted as
+ * divergences: their timings compare different work.
+ */
+public class ReplayCDCMSTrace extends AuxiliarMainTask {
+
+	@Override
+	public String getPurposeString() {
+		return "Replays a CDCMS trace with the recorded drift points and reports per-phase time and allocation.";
+	}
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String[] PHASES = { "predict", "train", "warning precompute", "window", "NL recovery", "drift" };
+
+	private static final int PREDICT = 0, TRAIN = 1, PRECOMPUTE = 2, WINDOW = 3, RECOVERY = 4, DRIFT = 5;
+
+	public FileOption traceFileOption = new FileOption("traceFile", 't',
+			"Trace file to replay.", null, "trace", false);
+
+	public StringOption learnerOption = new StringOption("learner", 'l',
+			"CDCMS configuration to replay with, as a CLI string. Empty to use the recorded one. "
+			+ "Its drift detector is replaced by the recorded decisions.", "");
+
+	public FileOption outputFileOption = new FileOption("outputFile", 'o',
+			"CSV file to write the per-phase report to.", null, "csv", true);
+
+	public FileOption baselineFileOption = new FileOption("baselineFile", 'b',
+			"Report of an earlier replay of the same trace to compare with.", null, "csv", false);
+
+	public IntOption warmupPassesOption = new IntOption("warmupPasses", 'w',
+			"Number of unmeasured replays before the measured one, to warm up the JIT.",
+			1, 0, Integer.MAX_VALUE);
+
+	@Override
+	protected Object doMainTask(TaskMonitor monitor, ObjectRepository repository) {
+		File destFile = this.outputFileOption.getFile();
+		if (destFile == null) {
+			throw new IllegalArgumentException("No destination file to write to.");
+		}
+
+		CDCMSTrace trace;
+		try {
+			monitor.setCurrentActivity("Reading trace...", -1.0);
+			trace = CDCMSTrace.read(this.traceFileOption.getFile());
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed reading trace " + this.traceFileOption.getFile(), ex);
+		}
+
+		byte[] decisions = new byte[trace.transitions.length];
+		for (int i = 0; i < decisions.length; ++i) {
+			decisions[i] = (byte) (((trace.transitions[i] & CDCMS.TRANSITION_DETECTOR_CHANGE) != 0 ? ReplayedChangeDetector.CHANGE : 0)
+					| ((trace.transitions[i] & CDCMS.TRANSITION_DETECTOR_WARNING) != 0 ? ReplayedChangeDetector.WARNING : 0));
+		}
+		String learnerCLIString = this.learnerOption.getValue().trim().isEmpty() ? trace.learnerCLIString : this.learnerOption.getValue();
+
+		Replay replay = null;
+		ForkJoinPool pool = new ForkJoinPool(1);
+		try {
+			for (int pass = 0; pass <= this.warmupPassesOption.getValue(); ++pass) {
+				monitor.setCurrentActivity("Replay " + (pass + 1) + " of " + (this.warmupPassesOption.getValue() + 1) + "...", -1.0);
+				replay = pool.submit(() -> this.replay(learnerCLIString, decisions, trace)).get();
+				if (monitor.taskShouldAbort()) {
+					return null;
+				}
+			}
+		} catch (Exception ex) {
+			throw new RuntimeException("Replay failed.", ex);
+		} finally {
+			pool.shutdown();
+		}
+
+		Map<String, double[]> baseline = this.readBaseline();
+		try (PrintWriter out = new PrintWriter(destFile)) {
+			out.println("phase,count,totalMillis,meanMicros,maxMicros,allocatedBytesPerCall"
+					+ (baseline != null ? ",baselineMeanMicros,meanChangePercent,baselineAllocatedBytesPerCall,allocatedChangePercent" : ""));
+			for (int p = 0; p < PHASES.length; ++p) {
+				double mean = replay.count[p] > 0 ? replay.nanos[p] / 1000.0 / replay.count[p] : 0.0;
+				double allocated = replay.count[p] > 0 && replay.allocated[p] >= 0 ? (double) replay.allocated[p] / replay.count[p] : -1.0;
+				StringBuilder row = new StringBuilder();
+				row.append(PHASES[p]).append(',')
+				   .append(replay.count[p]).append(',')
+				   .append(replay.nanos[p] / 1.0e6).append(',')
+				   .append(mean).append(',')
+				   .append(replay.maxNanos[p] / 1000.0).append(',')
+				   .append(allocated);
+				if (baseline != null) {
+					double[] before = baseline.get(PHASES[p]);
+					row.append(',').append(before == null ? "" : String.valueOf(before[0]))
+					   .append(',').append(before == null ? "" : String.valueOf(percentChange(before[0], mean)))
+					   .append(',').append(before == null ? "" : String.valueOf(before[1]))
+					   .append(',').append(before == null ? "" : String.valueOf(percentChange(before[1], allocated)));
+				}
+				out.println(row);
+			}
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed writing to file " + destFile, ex);
+		}
+
+		return "Replayed " + trace.instances.size() + " instances: accuracy " + (100.0 * replay.correct / Math.max(trace.instances.size(), 1))
+				+ "%, " + replay.divergences + " divergent records"
+				+ (replay.firstDivergence >= 0 ? " (first at instance " + replay.firstDivergence + ")" : "")
+				+ ". Report written to " + destFile;
+	}
+
+	protected Replay replay(String learnerCLIString, byte[] decisions, CDCMSTrace trace) throws Exception {
+		CDCMS learner = (CDCMS) ClassOption.cliStringToObject(learnerCLIString, CDCMS.class, null);
+		learner.driftDetectorOption.setCurrentObject(new ReplayedChangeDetector(decisions));
+		learner.prepareForUse();
+		learner.setModelContext(trace.header);
+		learner.resetLearning();
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocationBean = threadBean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()
+				? (com.sun.management.ThreadMXBean) threadBean : null;
+		long threadId = Thread.currentThread().getId();
+
+		Replay replay = new Replay();
+		for (int i = 0; i < trace.instances.size(); ++i) {
+			Instance inst = trace.instances.get(i);
+
+			long allocated0 = allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) : 0L;
+			long time0 = System.nanoTime();
+			boolean correct = learner.correctlyClassifies(inst);
+			long time1 = System.nanoTime();
+			long allocated1 = allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) : 0L;
+			learner.trainOnInstance(inst);
+			long time2 = System.nanoTime();
+			long allocated2 = allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) : 0L;
+
+			int transitions = learner.getLastTransitions();
+			replay.add(PREDICT, time1 - time0, allocationBean != null ? allocated1 - allocated0 : -1L);
+			replay.add(phaseOf(transitions), time2 - time1, allocationBean != null ? allocated2 - allocated1 : -1L);
+			if (correct) {
+				replay.correct++;
+			}
+
+			int recorded = trace.transitions[i];
+			boolean diverged = (transitions & CDCMSTrace.STRUCTURAL) != (recorded & CDCMSTrace.STRUCTURAL)
+					|| ((recorded & CDCMSTrace.STRUCTURAL) != 0 && !Arrays.equals(trace.sizes[i], learner.getEnsembleAndRepositorySizes()));
+			if (diverged) {
+				if (replay.firstDivergence < 0) {
+					replay.firstDivergence = i;
+				}
+				replay.divergences++;
+			}
+		}
+		return replay;
+	}
+
+	private static int phaseOf(int transitions) {
+		if ((transitions & CDCMS.TRANSITION_DRIFT_HANDLED) != 0) {
+			return DRIFT;
+		} else if ((transitions & CDCMS.TRANSITION_NL_RECOVERY) != 0) {
+			return RECOVERY;
+		} else if ((transitions & CDCMS.TRANSITION_WINDOW) != 0) {
+			return WINDOW;
+		} else if ((transitions & CDCMS.TRANSITION_PRECOMPUTED) != 0) {
+			return PRECOMPUTE;
+		}
+		return TRAIN;
+	}
+
+	private static double percentChange(double before, double after) {
+		return before > 0.0 && after >= 0.0 ? 100.0 * (after - before) / before : Double.NaN;
+	}
+
+	/*
+	 * Mean time and allocation per call, by phase, from the report of an earlier replay.
+	 */
+	private Map<String, double[]> readBaseline() {
+		File baselineFile = this.baselineFileOption.getFile();
+		if (baselineFile == null) {
+			return null;
+		}
+		Map<String, double[]> baseline = new HashMap<String, double[]>();
+		try (BufferedReader in = new BufferedReader(new FileReader(baselineFile))) {
+			in.readLine();
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(",");
+				baseline.put(fields[0], new double[] { Double.parseDouble(fields[3]), Double.parseDouble(fields[5]) });
+			}
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed reading baseline " + baselineFile, ex);
+		}
+		return baseline;
+	}
+
+	protected static class Replay {
+
+		protected final long[] count = new long[PHASES.length];
+		protected final long[] nanos = new long[PHASES.length];
+		protected final long[] maxNanos = new long[PHASES.length];
+		protected final long[] allocated = new long[PHASES.length];
+
+		protected long correct;
+		protected long divergences;
+		protected long firstDivergence = -1;
+
+		protected void add(int phase, long elapsedNanos, long allocatedBytes) {
+			this.count[phase]++;
+			this.nanos[phase] += elapsedNanos;
+			this.maxNanos[phase] = Math.max(this.maxNanos[phase], elapsedNanos);
+			// -1 once any measurement was unavailable.
+			this.allocated[phase] = allocatedBytes < 0 || this.allocated[phase] < 0 ? -1L : this.allocated[phase] + allocatedBytes;
+		}
+	}
+
+	@Override
+	public Class<?> getTaskResultType() {
+		return String.class;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ *    WriteStreamToBinaryFile.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import com.github.javacliparser.FileOption;
+import com.github.javacliparser.IntOption;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.core.ObjectRepository;
+import moa.options.ClassOption;
+import moa.streams.BinaryFileStream;
+import moa.streams.InstanceStream;
+
+/**
+ * Task to convert a stream (typically an ARFF file) into the block-columnar
+ * binary format read by {@link BinaryFileStream}. Meant to be run once per
+ * dataset so that later replays skip ARFF parsing entirely.
+ */
+public class WriteStreamToBinaryFile extends AuxiliarMainTask {
+
+	@Override
+	public String getPurposeString() {
+		return "Outputs a stream to a binary file readable by BinaryFileStream.";
+	}
+
+	private static final long serialVersionUID = 1L;
+
+	public ClassOption streamOption = new ClassOption("stream", 's',
+			"Stream to write.", InstanceStream.class,
+			"ArffFileStream");
+
+	public FileOption binaryFileOption = new FileOption("binaryFile", 'f',
+			"Destination binary file.", null, "bin", true);
+
+	public IntOption maxInstancesOption = new IntOption("maxInstances", 'm',
+			"Maximum number of instances to write to file.", 10000000, 0,
+			Integer.MAX_VALUE);
+
+	public IntOption blockSizeOption = new IntOption("blockSize", 'b',
+			"Number of instances stored per columnar block.", 4096, 1,
+			Integer.MAX_VALUE);
+
+	@Override
+	protected Object doMainTask(TaskMonitor monitor, ObjectRepository repository) {
+		InstanceStream stream = (InstanceStream) getPreparedClassOption(this.streamOption);
+		File destFile = this.binaryFileOption.getFile();
+		if (destFile == null) {
+			throw new IllegalArgumentException("No destination file to write to.");
+		}
+
+		InstancesHeader header = stream.getHeader();
+		int numAttributes = header.numAttributes();
+		byte[] columnTypes = new byte[numAttributes];
+		for (int i = 0; i < numAttributes; ++i) {
+			columnTypes[i] = BinaryFileStream.columnTypeFor(header.attribute(i));
+		}
+		int blockSize = this.blockSizeOption.getValue();
+
+		long numWritten = 0;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(destFile)))) {
+			monitor.setCurrentActivityDescription("Writing stream to binary file");
+
+			out.writeInt(BinaryFileStream.MAGIC);
+			out.writeInt(BinaryFileStream.VERSION);
+			out.writeLong(-1L); // patched once the number of instances is known
+			out.writeInt(blockSize);
+			out.writeInt(header.classIndex());
+			out.writeInt(numAttributes);
+			out.write(columnTypes);
+			byte[] headerText = header.toString().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(headerText.length);
+			out.write(headerText);
+
+			double[][] block = new double[blockSize][];
+			double[] weights = new double[blockSize];
+			int rows = 0;
+			while (numWritten < this.maxInstancesOption.getValue() && stream.hasMoreInstances()) {
+				Instance inst = stream.nextInstance().getData();
+				block[rows] = inst.toDoubleArray();
+				weights[rows] = inst.weight();
+				rows++;
+				numWritten++;
+				if (rows == blockSize) {
+					writeBlock(out, block, weights, rows, columnTypes);
+					rows = 0;
+				}
+				if (monitor.taskShouldAbort()) {
+					return null;
+				}
+			}
+			if (rows > 0) {
+				writeBlock(out, block, weights, rows, columnTypes);
+			}
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed writing to file " + destFile, ex);
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(destFile, "rw")) {
+			raf.seek(2 * Integer.BYTES);
+			raf.writeLong(numWritten);
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed writing to file " + destFile, ex);
+		}
+		return "Stream written to binary file " + destFile + " (" + numWritten + " instances)";
+	}
+
+	private static void writeBlock(DataOutputStream out, double[][] block, double[] weights,
+			int rows, byte[] columnTypes) throws java.io.IOException {
+		boolean hasWeights = false;
+		for (int r = 0; r < rows && !hasWeights; ++r) {
+			hasWeights = weights[r] != 1.0;
+		}
+
+		out.writeInt(rows);
+		out.writeByte(hasWeights ? 1 : 0);
+		if (hasWeights) {
+			for (int r = 0; r < rows; ++r) {
+				out.writeDouble(weights[r]);
+			}
+		}
+		for (int i = 0; i < columnTypes.length; ++i) {
+			for (int r = 0; r < rows; ++r) {
+				double value = block[r][i];
+				int nominal = Double.isNaN(value) ? -1 : (int) value;
+				switch (columnTypes[i]) {
+					case BinaryFileStream.COLUMN_DOUBLE:
+						out.writeDouble(value);
+						break;
+					case BinaryFileStream.COLUMN_BYTE:
+						out.writeByte(nominal);
+						break;
+					case BinaryFileStream.COLUMN_SHORT:
+						out.writeShort(nominal);
+						break;
+					default:
+						out.writeInt(nominal);
+						break;
+				}
+			}
+		}
+	}
+
+	@Override
+	public Class<?> getTaskResultType() {
+		return String.class;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ *    CDCMSTest.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+import moa.options.ClassOption;
+import moa.streams.ConceptDriftStream;
+import moa.streams.InstanceStream;
+
+/**
+ * Tests of CDCMS as a whole, on a STAGGER stream with an abrupt drift every
+ * 3000 instances.
+ */
+public class CDCMSTest extends TestCase {
+
+	private static final String STREAM = "ConceptDriftStream -s (generators.STAGGERGenerator -f 1)"
+			+ " -d (ConceptDriftStream -s (generators.STAGGERGenerator -f 2)"
+			+ " -d (ConceptDriftStream -s (generators.STAGGERGenerator -f 3) -d (generators.STAGGERGenerator -f 1) -p 3000 -w 1)"
+			+ " -p 3000 -w 1) -p 3000 -w 1";
+
+	/*
+	 * Hash of the votes of "CDCMS -d DDM" on STREAM, as given by the original CDCMS.
+	 */
+	private static final long ORIGINAL_VOTES_HASH = -6141361550787743298L;
+
+	private static InstanceStream stream() throws Exception {
+		ConceptDriftStream stream = (ConceptDriftStream) ClassOption.cliStringToObject(STREAM, InstanceStream.class, null);
+		stream.prepareForUse();
+		return stream;
+	}
+
+	private static CDCMS learner(String cliString, InstanceStream stream) throws Exception {
+		CDCMS learner = (CDCMS) ClassOption.cliStringToObject(cliString, CDCMS.class, null);
+		learner.prepareForUse();
+		learner.setModelContext(stream.getHeader());
+		learner.resetLearning();
+		return learner;
+	}
+
+	/*
+	 * Trains prequentially on numInstances instances and returns a hash of the votes.
+	 */
+	private static long trainAndHashVotes(Classifier learner, InstanceStream stream, int numInstances) {
+		long hash = 17;
+		for (int i = 0; i < numInstances && stream.hasMoreInstances(); ++i) {
+			Instance inst = stream.nextInstance().getData();
+			for (double vote : learner.getVotesForInstance(inst)) {
+				hash = hash * 31 + Double.doubleToLongBits(vote);
+			}
+			learner.trainOnInstance(inst);
+		}
+		return hash;
+	}
+
+	/*
+	 * Trains on numTrained instances, copies the learner, and checks that the copy predicts
+	 * and learns like the original on the following numCompared instances.
+	 */
+	private static void assertCopyBehavesLikeOriginal(String cliString, int numTrained, int numCompared) throws Exception {
+		InstanceStream stream = stream();
+		CDCMS original = learner(cliString, stream);
+		assertNotNull(original.copy());
+		trainAndHashVotes(original, stream, numTrained);
+
+		CDCMS copy = (CDCMS) original.copy();
+		for (int i = 0; i < numCompared && stream.hasMoreInstances(); ++i) {
+			Instance inst = stream.nextInstance().getData();
+			assertTrue("Instance " + (numTrained + i), Arrays.equals(original.getVotesForInstance(inst), copy.getVotesForInstance(inst)));
+			original.trainOnInstance(inst);
+			copy.trainOnInstance(inst);
+		}
+	}
+
+	public void testCopy() throws Exception {
+		assertCopyBehavesLikeOriginal("CDCMS -d DDM", 4500, 3000);
+	}
+
+	public void testCopyWithConcurrentInference() throws Exception {
+		// With NL copied into the snapshot every instance, the copy's fresh snapshot is the same as the original's.
+		assertCopyBehavesLikeOriginal("CDCMS -d DDM -c -g 1", 4500, 3000);
+	}
+
+	public void testCopyInWarningZone() throws Exception {
+		InstanceStream stream = stream();
+		CDCMS original = learner("CDCMS -d DDM -r", stream);
+		int trained = 0;
+		for (int warnings = 0; warnings < 3 && stream.hasMoreInstances(); ++trained) {
+			original.trainOnInstance(stream.nextInstance().getData());
+			if ((original.getLastTransitions() & CDCMS.TRANSITION_PRECOMPUTED) != 0) {
+				warnings++;
+			}
+		}
+		assertNotNull(original.speculativeDriftResponse);
+		CDCMS copy = (CDCMS) original.copy();
+		assertNull(copy.speculativeDriftResponse);
+		for (int i = 0; i < 3000 && stream.hasMoreInstances(); ++i) {
+			copy.trainOnInstance(stream.nextInstance().getData());
+		}
+		assertTrue(copy.trainingWeightSeenByModel() > trained);
+	}
+
+	/*
+	 * With the optional features off, CDCMS predicts exactly as it originally did.
+	 */
+	public void testDefaultVotesMatchTheOriginal() throws Exception {
+		InstanceStream stream = stream();
+		assertEquals(ORIGINAL_VOTES_HASH, trainAndHashVotes(learner("CDCMS -d DDM", stream), stream, 12000));
+	}
+
+	public void testFlatVoteAggregationVotesMatchTheOriginal() throws Exception {
+		InstanceStream stream = stream();
+		assertEquals(ORIGINAL_VOTES_HASH, trainAndHashVotes(learner("CDCMS -d DDM -v", stream), stream, 12000));
+	}
+
+	/*
+	 * Republished after every instance, the snapshot, with its NL compiled for prediction,
+	 * predicts exactly like the ensembles it was taken from.
+	 */
+	public void testConcurrentInferenceVotesMatchTheOriginal() throws Exception {
+		InstanceStream stream = stream();
+		assertEquals(ORIGINAL_VOTES_HASH, trainAndHashVotes(learner("CDCMS -d DDM -c -g 1", stream), stream, 12000));
+	}
+}
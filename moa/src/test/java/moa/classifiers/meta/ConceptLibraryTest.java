@@ -0,0 +1,84 @@
+/*
+ *    ConceptLibraryTest.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.yahoo.labs.samoa.instances.Attribute;
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.classifiers.Classifier;
+import moa.classifiers.functions.MajorityClass;
+
+/**
+ * Writes a concept library and reads it back.
+ */
+public class ConceptLibraryTest extends TestCase {
+
+	public void testRoundTripWithWideSchema() throws Exception {
+		// A nominal attribute whose values alone take more than the 64 KB of writeUTF.
+		List<String> values = new ArrayList<String>();
+		for (int v = 0; v < 10000; ++v) {
+			values.add("value" + v);
+		}
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(new Attribute("wide", values));
+		attributes.add(new Attribute("class", Arrays.asList("a", "b")));
+		Instances dataset = new Instances("wide", attributes, 0);
+		dataset.setClassIndex(1);
+		InstancesHeader header = new InstancesHeader(dataset);
+
+		MajorityClass model = new MajorityClass();
+		model.prepareForUse();
+		model.setModelContext(header);
+		model.resetLearning();
+		Instance inst = new DenseInstance(1.0, new double[] { 3.0, 1.0 });
+		inst.setDataset(header);
+		model.trainOnInstance(inst);
+
+		boolean[] profile = { true, false, false, true, true, false, true, true, false };
+
+		File file = File.createTempFile("cdcms", ".library");
+		file.deleteOnExit();
+		try (ConceptLibrary.Writer writer = new ConceptLibrary.Writer(file, header)) {
+			writer.add(model, 2, profile);
+		}
+
+		ConceptLibrary library = ConceptLibrary.open(file);
+		assertEquals(ConceptLibrary.schemaOf(header), library.schema);
+		assertEquals(1, library.entries.size());
+
+		ConceptLibrary.Entry entry = library.entries.get(0);
+		assertEquals(model.trainingWeightSeenByModel(), entry.trainingWeight);
+		assertEquals(2, entry.clusterLabel);
+		assertFalse(entry.frozen);
+		assertTrue(Arrays.equals(profile, entry.profile));
+
+		Classifier loaded = entry.load();
+		assertTrue(Arrays.equals(model.getVotesForInstance(inst), loaded.getVotesForInstance(inst)));
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ *    CompactHoeffdingTreeTest.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.trees;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.streams.InstanceStream;
+import moa.streams.generators.AgrawalGenerator;
+import moa.streams.generators.RandomRBFGenerator;
+
+/**
+ * Compiles trained trees and checks that they predict like the originals.
+ */
+public class CompactHoeffdingTreeTest extends TestCase {
+
+	private static void assertCompiledTreePredictsLikeOriginal(InstanceStream stream, String leafPrediction) throws Exception {
+		HoeffdingTree tree = new HoeffdingTree();
+		tree.getOptions().setViaCLIString("-l " + leafPrediction);
+		tree.prepareForUse();
+		tree.setModelContext(stream.getHeader());
+		tree.resetLearning();
+		for (int i = 0; i < 10000; ++i) {
+			tree.trainOnInstance(stream.nextInstance().getData());
+		}
+
+		CompactHoeffdingTree compact = CompactHoeffdingTree.compile(tree);
+		assertNotNull(compact);
+		assertTrue(compact.getPredictionStateBytes() > 0);
+		assertTrue(compact.getLearnerStateBytes() > 0);
+		CompactHoeffdingTree predictor = CompactHoeffdingTree.compilePredictor(tree);
+		assertEquals(0L, predictor.getLearnerStateBytes());
+		HoeffdingTree thawed = compact.thaw();
+		assertEquals(tree.trainingWeightSeenByModel(), thawed.trainingWeightSeenByModel());
+		for (int i = 0; i < 2000; ++i) {
+			Instance inst = stream.nextInstance().getData();
+			double[] votes = tree.getVotesForInstance(inst);
+			assertTrue(Arrays.equals(votes, compact.getVotesForInstance(inst)));
+			assertTrue(Arrays.equals(votes, predictor.getVotesForInstance(inst)));
+			assertTrue(Arrays.equals(votes, thawed.getVotesForInstance(inst)));
+		}
+	}
+
+	public void testNumericAttributes() throws Exception {
+		for (String leafPrediction : new String[] { "MC", "NB", "NBAdaptive" }) {
+			RandomRBFGenerator stream = new RandomRBFGenerator();
+			stream.prepareForUse();
+			assertCompiledTreePredictsLikeOriginal(stream, leafPrediction);
+		}
+	}
+
+	public void testMixedAttributes() throws Exception {
+		for (String leafPrediction : new String[] { "MC", "NB", "NBAdaptive" }) {
+			AgrawalGenerator stream = new AgrawalGenerator();
+			stream.prepareForUse();
+			assertCompiledTreePredictsLikeOriginal(stream, leafPrediction);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ *    CDCMSParameterSweepTest.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs a small sweep and checks its CSV.
+ */
+public class CDCMSParameterSweepTest extends TestCase {
+
+	public void testSweep() throws Exception {
+		File file = File.createTempFile("cdcms", ".csv");
+		file.deleteOnExit();
+
+		CDCMSParameterSweep task = new CDCMSParameterSweep();
+		task.getOptions().setViaCLIString("-l (CDCMS -d DDM) -s (generators.STAGGERGenerator) -k 2,3 -b 100 -i 400 -r 2 -o "
+				+ file.getAbsolutePath());
+		task.prepareForUse();
+		assertNotNull(task.doTask());
+
+		List<String> lines = Files.readAllLines(file.toPath());
+		assertEquals(3, lines.size());
+		assertTrue(lines.get(0).startsWith("ensembleSize,repositorySizeMultiple,windowSize,similarityThreshold,"));
+		for (int i = 1; i < lines.size(); ++i) {
+			// The clusterer parameters column is quoted and may contain commas, so only the ends are split.
+			String row = lines.get(i);
+			String[] head = row.substring(0, row.indexOf('"')).split(",");
+			String[] tail = row.substring(row.lastIndexOf('"') + 2).split(",");
+			assertEquals(String.valueOf(i + 1), head[0]);
+			assertEquals("10", head[1]);
+			assertEquals("100", head[2]);
+			assertEquals("400", tail[0]);
+			double accuracy = Double.parseDouble(tail[1]);
+			assertTrue(accuracy > 0.0 && accuracy <= 100.0);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ *    CDCMSTaskDefaultsTest.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import junit.framework.TestCase;
+
+import moa.classifiers.meta.CDCMS;
+import moa.options.ClassOption;
+
+/**
+ * Smoke tests: the CDCMS tasks can be constructed with their default options,
+ * and their default learner resolves to a CDCMS.
+ */
+public class CDCMSTaskDefaultsTest extends TestCase {
+
+	private static void assertDefaultLearnerIsCDCMS(ClassOption learnerOption) throws Exception {
+		Object learner = ClassOption.cliStringToObject(learnerOption.getDefaultCLIString(), learnerOption.getRequiredType(), null);
+		assertTrue(learner instanceof CDCMS);
+	}
+
+	public void testParameterSweepDefaults() throws Exception {
+		CDCMSParameterSweep task = new CDCMSParameterSweep();
+		assertNotNull(task.getOptions());
+		assertDefaultLearnerIsCDCMS(task.learnerOption);
+	}
+
+	public void testRecordTraceDefaults() throws Exception {
+		RecordCDCMSTrace task = new RecordCDCMSTrace();
+		assertNotNull(task.getOptions());
+		assertDefaultLearnerIsCDCMS(task.learnerOption);
+	}
+
+	public void testReplayTraceDefaults() throws Exception {
+		assertNotNull(new ReplayCDCMSTrace().getOptions());
+	}
+
+	public void testExportConceptLibraryDefaults() throws Exception {
+		ExportCDCMSConceptLibrary task = new ExportCDCMSConceptLibrary();
+		assertNotNull(task.getOptions());
+		assertDefaultLearnerIsCDCMS(task.learnerOption);
+	}
+}
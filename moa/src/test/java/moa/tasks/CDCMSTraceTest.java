@@ -0,0 +1,120 @@
+/*
+ *    CDCMSTraceTest.java
+ *    Copyright (C) 2018 University of Birmingham, Birmingham, United Kingdom
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.meta.CDCMS;
+import moa.streams.generators.SEAGenerator;
+
+/**
+ * Writes a small trace and reads it back.
+ */
+public class CDCMSTraceTest extends TestCase {
+
+	public void testRoundTrip() throws Exception {
+		SEAGenerator stream = new SEAGenerator();
+		stream.prepareForUse();
+		Instance[] written = new Instance[3];
+		for (int i = 0; i < written.length; ++i) {
+			written[i] = stream.nextInstance().getData();
+		}
+		written[1].setWeight(2.5);
+
+		// A CLI string longer than writeUTF allows.
+		char[] longOption = new char[70000];
+		Arrays.fill(longOption, 'x');
+		String cli = "CDCMS -p " + new String(longOption);
+
+		int allTransitions = CDCMS.TRANSITION_DETECTOR_CHANGE | CDCMS.TRANSITION_DETECTOR_WARNING | CDCMS.TRANSITION_DRIFT_HANDLED
+				| CDCMS.TRANSITION_WINDOW | CDCMS.TRANSITION_NL_RECOVERY | CDCMS.TRANSITION_PRECOMPUTED | CDCMS.TRANSITION_CLUSTERED;
+		int[] transitions = { 0, allTransitions, CDCMS.TRANSITION_WINDOW };
+		int[][] sizes = { null, { 1, 2, 3, 4 }, { 5, 0, 0, 7 } };
+
+		File file = File.createTempFile("cdcms", ".trace");
+		file.deleteOnExit();
+		try (CDCMSTrace.Writer writer = new CDCMSTrace.Writer(file, cli, stream.getHeader())) {
+			for (int i = 0; i < written.length; ++i) {
+				writer.write(written[i], transitions[i], sizes[i]);
+			}
+		}
+
+		CDCMSTrace trace = CDCMSTrace.read(file);
+		assertEquals(cli, trace.learnerCLIString);
+		assertEquals(written.length, trace.instances.size());
+		for (int i = 0; i < written.length; ++i) {
+			assertEquals(written[i].toString(), trace.instances.get(i).toString());
+			assertEquals(written[i].weight(), trace.instances.get(i).weight());
+			assertEquals(transitions[i], trace.transitions[i]);
+			assertTrue(Arrays.equals(sizes[i], trace.sizes[i]));
+		}
+	}
+
+	public void testRecordAndReplay() throws Exception {
+		File traceFile = File.createTempFile("cdcms", ".trace");
+		traceFile.deleteOnExit();
+		RecordCDCMSTrace record = new RecordCDCMSTrace();
+		record.getOptions().setViaCLIString("-l (CDCMS -d DDM -b 100) -s (generators.STAGGERGenerator) -i 500 -f "
+				+ traceFile.getAbsolutePath());
+		record.prepareForUse();
+		assertNotNull(record.doTask());
+		assertTrue(CDCMSTrace.read(traceFile).learnerCLIString.startsWith("CDCMS "));
+
+		// With the recorded configuration, and with one given like the other tasks' learners.
+		for (String learner : new String[] { "", "(CDCMS -d DDM -b 100 -c)" }) {
+			File reportFile = File.createTempFile("cdcms", ".csv");
+			reportFile.deleteOnExit();
+			ReplayCDCMSTrace replay = new ReplayCDCMSTrace();
+			replay.getOptions().setViaCLIString("-t " + traceFile.getAbsolutePath() + " -w 0 -o " + reportFile.getAbsolutePath()
+					+ (learner.isEmpty() ? "" : " -l " + learner));
+			replay.prepareForUse();
+			assertTrue(replay.doTask().toString().startsWith("Replayed 500 instances"));
+
+			List<String> rows = Files.readAllLines(reportFile.toPath());
+			assertEquals(7, rows.size());
+			long count = 0;
+			for (int i = 1; i < rows.size(); ++i) {
+				String[] fields = rows.get(i).split(",");
+				if (!fields[0].equals("predict")) {
+					count += Long.parseLong(fields[1]);
+				}
+			}
+			assertEquals(500, count);
+		}
+	}
+
+	public void testTransitionsOutsideTheRecordByteAreRejected() throws Exception {
+		SEAGenerator stream = new SEAGenerator();
+		stream.prepareForUse();
+		File file = File.createTempFile("cdcms", ".trace");
+		file.deleteOnExit();
+		try (CDCMSTrace.Writer writer = new CDCMSTrace.Writer(file, "CDCMS", stream.getHeader())) {
+			writer.write(stream.nextInstance().getData(), 1 << 8, null);
+			fail("A transition bit beyond the record's byte was written.");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}